@@ -21,20 +21,35 @@ import android.content.Context;
 import java.io.File;
 
 import me.xiaopan.android.spear.cache.DiskCache;
+import me.xiaopan.android.spear.cache.DiskCacheDeduplicator;
+import me.xiaopan.android.spear.cache.DiskCacheJanitor;
+import me.xiaopan.android.spear.cache.DiskCacheTranscoder;
+import me.xiaopan.android.spear.cache.FailedUriCache;
 import me.xiaopan.android.spear.cache.LruDiskCache;
+import me.xiaopan.android.spear.cache.PackedDiskCache;
+import me.xiaopan.android.spear.cache.LruFailedUriCache;
 import me.xiaopan.android.spear.cache.LruMemoryCache;
 import me.xiaopan.android.spear.cache.MemoryCache;
 import me.xiaopan.android.spear.decode.DefaultImageDecoder;
 import me.xiaopan.android.spear.decode.ImageDecoder;
 import me.xiaopan.android.spear.display.DefaultImageDisplayer;
 import me.xiaopan.android.spear.display.ImageDisplayer;
+import me.xiaopan.android.spear.download.AimdConcurrencyController;
+import me.xiaopan.android.spear.download.ConcurrencyController;
+import me.xiaopan.android.spear.download.DefaultNetworkPolicy;
 import me.xiaopan.android.spear.download.HttpUrlConnectionImageDownloader;
 import me.xiaopan.android.spear.download.ImageDownloader;
+import me.xiaopan.android.spear.download.NetworkPolicy;
+import me.xiaopan.android.spear.download.BackgroundDownloadLimiter;
+import me.xiaopan.android.spear.download.RateLimiter;
+import me.xiaopan.android.spear.download.TokenBucketRateLimiter;
 import me.xiaopan.android.spear.execute.DefaultRequestExecutor;
 import me.xiaopan.android.spear.execute.RequestExecutor;
 import me.xiaopan.android.spear.process.CutImageProcessor;
 import me.xiaopan.android.spear.process.ImageProcessor;
 import me.xiaopan.android.spear.util.DefaultHelperFactory;
+import me.xiaopan.android.spear.util.CacheKeyFactory;
+import me.xiaopan.android.spear.util.DefaultCacheKeyFactory;
 import me.xiaopan.android.spear.util.DefaultImageSizeCalculator;
 import me.xiaopan.android.spear.util.DisplayCallbackHandler;
 import me.xiaopan.android.spear.util.DisplayHelperManager;
@@ -43,31 +58,46 @@ import me.xiaopan.android.spear.util.ImageSizeCalculator;
 
 public class Configuration {
     private Context context;	//上下文
-    private DiskCache diskCache;    // 磁盘缓存器
-    private MemoryCache memoryCache;	//图片缓存器
+    private volatile DiskCache diskCache;    // 磁盘缓存器
+    private PackedDiskCache packedDiskCache;    // 打包磁盘缓存器，默认不开启
+    private DiskCacheJanitor diskCacheJanitor;  // 磁盘缓存清洁工
+    private DiskCacheTranscoder diskCacheTranscoder;    // 磁盘缓存转码器，默认不开启
+    private DiskCacheDeduplicator diskCacheDeduplicator;    // 磁盘缓存去重器，默认不开启
+    private volatile MemoryCache memoryCache;	//图片缓存器
     private ImageDecoder imageDecoder;	//图片解码器
     private HelperFactory helperFactory;    // 协助器工厂
     private ImageDisplayer defaultImageDisplayer;   // 默认的图片显示器，当DisplayRequest中没有指定显示器的时候就会用到
     private ImageProcessor defaultCutImageProcessor;    // 默认的图片裁剪处理器
-    private ImageDownloader imageDownloader;	//图片下载器
-    private RequestExecutor requestExecutor;	//请求执行器
+    private volatile ImageDownloader imageDownloader;	//图片下载器
+    private volatile RequestExecutor requestExecutor;	//请求执行器
     private ImageSizeCalculator imageSizeCalculator; // 图片尺寸计算器
     private DisplayHelperManager displayHelperManager;  // DisplayHelper管理器
-    private DisplayCallbackHandler displayCallbackHandler;	//显示相关回调处理器
+    private volatile DisplayCallbackHandler displayCallbackHandler;	//显示相关回调处理器
+    private FailedUriCache failedUriCache;  // 失败URI缓存器
+    private NetworkPolicy networkPolicy;    // 网络策略
+    private ConcurrencyController concurrencyController;    // 网络并发数控制器
+    private RateLimiter rateLimiter;    // 下载限速器
+    private BackgroundDownloadLimiter backgroundDownloadLimiter;    // 后台下载线程数限制器
+    private CacheKeyFactory cacheKeyFactory;    // 缓存KEY工厂
+    private float finishInBackgroundProgress = 0.8f;    // 取消时下载进度达到此比例就继续在后台下载完
+    private int finishInBackgroundRemainingLength = 64*1024;    // 取消时剩余长度不超过此值就继续在后台下载完
 
     public Configuration(Context context){
         this.context = context;
-        this.diskCache = new LruDiskCache(context);
-        this.memoryCache = new LruMemoryCache();
+        // 磁盘缓存器、内存缓存器、图片下载器、请求执行器和显示相关回调处理器比较重，第一次使用时才创建，见对应的get方法
+        this.diskCacheJanitor = new DiskCacheJanitor(this);
         this.imageDecoder = new DefaultImageDecoder();
         this.helperFactory = new DefaultHelperFactory();
-        this.imageDownloader = new HttpUrlConnectionImageDownloader();
-        this.requestExecutor = new DefaultRequestExecutor.Builder().build();
         this.imageSizeCalculator = new DefaultImageSizeCalculator();
         this.displayHelperManager = new DisplayHelperManager();
         this.defaultImageDisplayer = new DefaultImageDisplayer();
-        this.displayCallbackHandler = new DisplayCallbackHandler();
         this.defaultCutImageProcessor = new CutImageProcessor();
+        this.failedUriCache = new LruFailedUriCache();
+        this.networkPolicy = new DefaultNetworkPolicy(context);
+        this.concurrencyController = new AimdConcurrencyController();
+        this.rateLimiter = new TokenBucketRateLimiter();
+        this.backgroundDownloadLimiter = new BackgroundDownloadLimiter();
+        this.cacheKeyFactory = new DefaultCacheKeyFactory();
     }
 
     /**
@@ -83,6 +113,13 @@ public class Configuration {
      * @return 请求执行器
      */
     public RequestExecutor getRequestExecutor() {
+        if(requestExecutor == null){
+            synchronized (this){
+                if(requestExecutor == null){
+                    requestExecutor = new DefaultRequestExecutor.Builder().build();
+                }
+            }
+        }
         return requestExecutor;
     }
 
@@ -91,6 +128,13 @@ public class Configuration {
      * @return 磁盘缓存器
      */
     public DiskCache getDiskCache() {
+        if(diskCache == null){
+            synchronized (this){
+                if(diskCache == null){
+                    diskCache = new LruDiskCache(context);
+                }
+            }
+        }
         return diskCache;
     }
 
@@ -99,6 +143,13 @@ public class Configuration {
      * @return 内存缓存器
      */
     public MemoryCache getMemoryCache() {
+        if(memoryCache == null){
+            synchronized (this){
+                if(memoryCache == null){
+                    memoryCache = new LruMemoryCache();
+                }
+            }
+        }
         return memoryCache;
     }
 
@@ -115,6 +166,13 @@ public class Configuration {
      * @return 显示相关回调处理器
      */
     public DisplayCallbackHandler getDisplayCallbackHandler() {
+        if(displayCallbackHandler == null){
+            synchronized (this){
+                if(displayCallbackHandler == null){
+                    displayCallbackHandler = new DisplayCallbackHandler();
+                }
+            }
+        }
         return displayCallbackHandler;
     }
 
@@ -122,6 +180,13 @@ public class Configuration {
      * 获取图片下载器
      */
     public ImageDownloader getImageDownloader() {
+        if(imageDownloader == null){
+            synchronized (this){
+                if(imageDownloader == null){
+                    imageDownloader = new HttpUrlConnectionImageDownloader();
+                }
+            }
+        }
         return imageDownloader;
     }
 
@@ -165,14 +230,148 @@ public class Configuration {
         return helperFactory;
     }
 
+    /**
+     * 获取失败URI缓存器
+     * @return 失败URI缓存器
+     */
+    public FailedUriCache getFailedUriCache() {
+        return failedUriCache;
+    }
+
+    /**
+     * 获取网络策略
+     * @return 网络策略
+     */
+    public NetworkPolicy getNetworkPolicy() {
+        return networkPolicy;
+    }
+
+    /**
+     * 获取网络并发数控制器
+     * @return 网络并发数控制器
+     */
+    public ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * 获取下载限速器
+     * @return 下载限速器
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * 获取后台下载线程数限制器
+     * @return 后台下载线程数限制器
+     */
+    public BackgroundDownloadLimiter getBackgroundDownloadLimiter() {
+        return backgroundDownloadLimiter;
+    }
+
+    /**
+     * 获取缓存KEY工厂
+     * @return 缓存KEY工厂
+     */
+    public CacheKeyFactory getCacheKeyFactory() {
+        return cacheKeyFactory;
+    }
+
+    /**
+     * 获取磁盘缓存清洁工
+     * @return 磁盘缓存清洁工
+     */
+    public DiskCacheJanitor getDiskCacheJanitor() {
+        return diskCacheJanitor;
+    }
+
+    /**
+     * 获取磁盘缓存转码器
+     * @return 磁盘缓存转码器，null表示没有开启
+     */
+    public DiskCacheTranscoder getDiskCacheTranscoder() {
+        return diskCacheTranscoder;
+    }
+
+    /**
+     * 获取磁盘缓存去重器
+     * @return 磁盘缓存去重器，null表示没有开启
+     */
+    public DiskCacheDeduplicator getDiskCacheDeduplicator() {
+        return diskCacheDeduplicator;
+    }
+
+    /**
+     * 获取打包磁盘缓存器
+     * @return 打包磁盘缓存器，null表示没有开启
+     */
+    public PackedDiskCache getPackedDiskCache() {
+        return packedDiskCache;
+    }
+
+    /**
+     * 获取取消时继续在后台下载完的进度阈值
+     * @return 进度阈值，0到1之间
+     */
+    public float getFinishInBackgroundProgress() {
+        return finishInBackgroundProgress;
+    }
+
+    /**
+     * 获取取消时继续在后台下载完的剩余长度阈值
+     * @return 剩余长度阈值，单位字节
+     */
+    public int getFinishInBackgroundRemainingLength() {
+        return finishInBackgroundRemainingLength;
+    }
+
     /**
      * 根据URI获取缓存文件
      */
     public File getCacheFileByUri(String uri){
-        if(diskCache == null){
-            return null;
+        return getDiskCache().getCacheFileByUri(cacheKeyFactory.createCacheKey(uri));
+    }
+
+    /**
+     * 根据URI固定缓存文件，被固定的缓存文件在申请空间的时候不会被删除
+     * @param uri 图片URI
+     */
+    public void pin(String uri){
+        getDiskCache().pin(cacheKeyFactory.createCacheKey(uri));
+    }
+
+    /**
+     * 根据URI取消固定缓存文件
+     * @param uri 图片URI
+     */
+    public void unpin(String uri){
+        getDiskCache().unpin(cacheKeyFactory.createCacheKey(uri));
+    }
+
+    /**
+     * 根据URI判断缓存文件是否被固定了
+     * @param uri 图片URI
+     * @return 是否被固定了
+     */
+    public boolean isPinned(String uri){
+        return getDiskCache().isPinned(cacheKeyFactory.createCacheKey(uri));
+    }
+
+    /**
+     * 清除磁盘缓存，打包磁盘缓存器以及转码和去重的记录也会一起清除，不然清除之后还能读到打包的图片；可能比较耗时，最好在后台线程中执行
+     */
+    public void clearDiskCache(){
+        getDiskCache().clear();
+        if(packedDiskCache != null){
+            packedDiskCache.clear();
+        }
+        if(diskCacheTranscoder != null){
+            diskCacheTranscoder.clear();
+        }
+        if(diskCacheDeduplicator != null){
+            diskCacheDeduplicator.clear();
         }
-        return diskCache.getCacheFileByUri(uri);
     }
 
     /**
@@ -273,4 +472,109 @@ public class Configuration {
         }
         return this;
     }
+
+    /**
+     * 设置失败URI缓存器
+     * @param failedUriCache 失败URI缓存器
+     */
+    public Configuration setFailedUriCache(FailedUriCache failedUriCache) {
+        if(failedUriCache != null){
+            this.failedUriCache = failedUriCache;
+        }
+        return this;
+    }
+
+    /**
+     * 设置网络策略
+     * @param networkPolicy 网络策略
+     */
+    public Configuration setNetworkPolicy(NetworkPolicy networkPolicy) {
+        if(networkPolicy != null){
+            this.networkPolicy = networkPolicy;
+        }
+        return this;
+    }
+
+    /**
+     * 设置网络并发数控制器
+     * @param concurrencyController 网络并发数控制器
+     */
+    public Configuration setConcurrencyController(ConcurrencyController concurrencyController) {
+        if(concurrencyController != null){
+            this.concurrencyController = concurrencyController;
+        }
+        return this;
+    }
+
+    /**
+     * 设置下载限速器
+     * @param rateLimiter 下载限速器
+     */
+    public Configuration setRateLimiter(RateLimiter rateLimiter) {
+        if(rateLimiter != null){
+            this.rateLimiter = rateLimiter;
+        }
+        return this;
+    }
+
+    /**
+     * 设置后台下载线程数限制器
+     * @param backgroundDownloadLimiter 后台下载线程数限制器
+     */
+    public Configuration setBackgroundDownloadLimiter(BackgroundDownloadLimiter backgroundDownloadLimiter) {
+        if(backgroundDownloadLimiter != null){
+            this.backgroundDownloadLimiter = backgroundDownloadLimiter;
+        }
+        return this;
+    }
+
+    /**
+     * 设置打包磁盘缓存器，开启后解码成功的小图片（例如头像、图标）会从磁盘缓存中移到打包磁盘缓存器中，读取时不用再单独打开文件
+     * @param packedDiskCache 打包磁盘缓存器，例如MappedPackedDiskCache，null表示关闭
+     */
+    public Configuration setPackedDiskCache(PackedDiskCache packedDiskCache) {
+        this.packedDiskCache = packedDiskCache;
+        return this;
+    }
+
+    /**
+     * 设置缓存KEY工厂，磁盘缓存、内存缓存以及下载去重都会用它生成的KEY，直接调用DiskCache的方法时也要传入它生成的KEY
+     * @param cacheKeyFactory 缓存KEY工厂
+     */
+    public Configuration setCacheKeyFactory(CacheKeyFactory cacheKeyFactory) {
+        if(cacheKeyFactory != null){
+            this.cacheKeyFactory = cacheKeyFactory;
+        }
+        return this;
+    }
+
+    /**
+     * 设置磁盘缓存去重器，开启后内容相同的图片在磁盘上只存一份，内存缓存也可以共享
+     * @param diskCacheDeduplicator 磁盘缓存去重器，例如DefaultDiskCacheDeduplicator，null表示关闭
+     */
+    public Configuration setDiskCacheDeduplicator(DiskCacheDeduplicator diskCacheDeduplicator) {
+        this.diskCacheDeduplicator = diskCacheDeduplicator;
+        return this;
+    }
+
+    /**
+     * 设置磁盘缓存转码器，开启后刚下载下来的大图会缩小并重新编码后再存入磁盘缓存，注意Spear.download()拿到的缓存文件也会是转码后的
+     * @param diskCacheTranscoder 磁盘缓存转码器，例如DefaultDiskCacheTranscoder，null表示关闭
+     */
+    public Configuration setDiskCacheTranscoder(DiskCacheTranscoder diskCacheTranscoder) {
+        this.diskCacheTranscoder = diskCacheTranscoder;
+        return this;
+    }
+
+    /**
+     * 设置取消时继续在后台下载完的阈值，显示请求被取消（例如ImageView被复用）时，如果下载进度达到progress或者剩余长度不超过remainingLength，
+     * 就不中止下载，而是降为后台流量继续下载到磁盘缓存（不解码），下次显示时就不用重新下载了
+     * @param progress 进度阈值，默认0.8，大于1表示不按进度判断
+     * @param remainingLength 剩余长度阈值，单位字节，默认64K，小于0表示不按剩余长度判断
+     */
+    public Configuration setFinishInBackgroundThreshold(float progress, int remainingLength) {
+        this.finishInBackgroundProgress = progress;
+        this.finishInBackgroundRemainingLength = remainingLength;
+        return this;
+    }
 }
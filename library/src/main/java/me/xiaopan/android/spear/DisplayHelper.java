@@ -20,8 +20,10 @@ import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 import android.widget.ImageView;
 
+import me.xiaopan.android.spear.cache.DiskCacheDeduplicator;
 import me.xiaopan.android.spear.display.ImageDisplayer;
 import me.xiaopan.android.spear.display.TransitionImageDisplayer;
+import me.xiaopan.android.spear.download.TrafficClass;
 import me.xiaopan.android.spear.process.ImageProcessor;
 import me.xiaopan.android.spear.request.DisplayListener;
 import me.xiaopan.android.spear.request.DisplayRequest;
@@ -437,6 +439,7 @@ public class DisplayHelper {
         if(enableMemoryCache){
             BitmapDrawable cacheDrawable = spear.getConfiguration().getMemoryCache().get(requestId);
             if(cacheDrawable != null){
+                spear.getConfiguration().getMemoryCache().putActive(requestId, cacheDrawable);
                 spear.getConfiguration().getDisplayCallbackHandler().completeCallbackOnFire(imageView, uri, cacheDrawable, displayListener, ImageFrom.MEMORY);
                 spear.getConfiguration().getDisplayHelperManager().recoveryDisplayHelper(this);
                 return null;
@@ -461,6 +464,13 @@ public class DisplayHelper {
             return new RequestFuture(potentialRequest);
         }
 
+        // 内存中有同一张图片更大的尺寸就直接拿来缩小，不用再读取和解码
+        String variantKey = createVariantKey(uri);
+        BitmapDrawable variantDrawable = null;
+        if(enableMemoryCache && maxsize != null){
+            variantDrawable = spear.getConfiguration().getMemoryCache().findVariant(variantKey, maxsize.getWidth(), maxsize.getHeight());
+        }
+
         // 创建请求
         final DisplayRequest request = new DisplayRequest();
 
@@ -469,6 +479,7 @@ public class DisplayHelper {
         request.setSpear(spear);
         request.setImageScheme(imageScheme);
         request.setEnableDiskCache(enableDiskCache);
+        request.setTrafficClass(TrafficClass.FOREGROUND);
 
         request.setMaxsize(maxsize);
         request.setResize(resize);
@@ -476,6 +487,7 @@ public class DisplayHelper {
         request.setScaleType(scaleType);
 
         request.setId(requestId);
+        request.setVariantKey(variantKey);
         request.setEnableMemoryCache(enableMemoryCache);
         request.setImageViewHolder(new ImageViewHolder(imageView, request));
         request.setImageDisplayer(imageDisplayer);
@@ -486,12 +498,26 @@ public class DisplayHelper {
 
         request.setResizeByImageViewLayoutSizeAndFromDisplayer(resizeByImageViewLayoutSizeAndFromDisplayer);
 
-        // 显示默认图片
-        BitmapDrawable loadingBitmapDrawable = getDrawableFromDrawableHolder(loadingDrawableHolder);
+        // 显示默认图片，内存中有同一张图片的其它尺寸就先拿它来占位
+        BitmapDrawable placeholderDrawable = null;
+        if(enableMemoryCache && imageProcessor == null){
+            placeholderDrawable = variantDrawable != null ? variantDrawable : spear.getConfiguration().getMemoryCache().findLargestVariant(variantKey);
+        }
         imageView.clearAnimation();
-        imageView.setImageDrawable(new AsyncDrawable(spear.getConfiguration().getContext().getResources(), loadingBitmapDrawable != null ? loadingBitmapDrawable.getBitmap() : null, request));
+        if(placeholderDrawable != null && placeholderDrawable.getBitmap() != null && !placeholderDrawable.getBitmap().isRecycled()){
+            imageView.setImageDrawable(new AsyncDrawable(spear.getConfiguration().getContext().getResources(), placeholderDrawable, request));
+        }else{
+            BitmapDrawable loadingBitmapDrawable = getDrawableFromDrawableHolder(loadingDrawableHolder);
+            imageView.setImageDrawable(new AsyncDrawable(spear.getConfiguration().getContext().getResources(), loadingBitmapDrawable != null ? loadingBitmapDrawable.getBitmap() : null, request));
+        }
 
-        request.runDispatch();
+        if(variantDrawable != null){
+            request.setVariantDrawable(variantDrawable);
+            request.setImageFrom(ImageFrom.MEMORY);
+            request.runLoad();
+        }else{
+            request.runDispatch();
+        }
         spear.getConfiguration().getDisplayHelperManager().recoveryDisplayHelper(this);
 
         RequestFuture requestFuture = new RequestFuture(request);
@@ -523,7 +549,7 @@ public class DisplayHelper {
      * 生成内存缓存ID
      */
     protected String createMemoryCacheId(String uri, ImageSize maxsize, ImageSize resize, ImageView.ScaleType scaleType, ImageProcessor imageProcessor){
-        StringBuilder stringBuilder = new StringBuilder(uri);
+        StringBuilder stringBuilder = new StringBuilder(createVariantKey(uri));
         if(maxsize != null){
             stringBuilder.append("_");
             stringBuilder.append(maxsize.getWidth());
@@ -547,6 +573,19 @@ public class DisplayHelper {
         return stringBuilder.toString();
     }
 
+    /**
+     * 生成同一张图片的不同尺寸共用的KEY，也是内存缓存ID的前缀
+     */
+    protected String createVariantKey(String uri){
+        // 内容相同的URI共享内存缓存
+        String cacheKey = spear.getConfiguration().getCacheKeyFactory().createCacheKey(uri);
+        DiskCacheDeduplicator diskCacheDeduplicator = spear.getConfiguration().getDiskCacheDeduplicator();
+        if(diskCacheDeduplicator != null){
+            cacheKey = diskCacheDeduplicator.getCanonicalKey(cacheKey);
+        }
+        return cacheKey;
+    }
+
     /**
      * 取消潜在的请求
      * @return true：取消成功；false：ImageView所关联的任务就是所需的无需取消
@@ -18,8 +18,12 @@ package me.xiaopan.android.spear;
 
 import android.util.Log;
 
+import java.io.File;
+
+import me.xiaopan.android.spear.download.TrafficClass;
 import me.xiaopan.android.spear.request.DownloadListener;
 import me.xiaopan.android.spear.request.DownloadRequest;
+import me.xiaopan.android.spear.request.DownloadStreamListener;
 import me.xiaopan.android.spear.request.ProgressListener;
 import me.xiaopan.android.spear.request.RequestFuture;
 import me.xiaopan.android.spear.util.FailureCause;
@@ -35,8 +39,10 @@ public class DownloadHelper {
     protected String uri;
 
     protected boolean enableDiskCache = DownloadRequest.DEFAULT_ENABLE_DISK_CACHE;
+    protected boolean prefetch;
 
     protected DownloadListener downloadListener;
+    protected DownloadStreamListener streamListener;
     protected ProgressListener progressListener;
 
     /**
@@ -53,7 +59,7 @@ public class DownloadHelper {
     }
 
     /**
-     * 设置监听器
+     * 设置监听器，不能和流式下载监听器同时使用
      * @return DownloadHelper
      */
     public DownloadHelper listener(DownloadListener downloadListener){
@@ -61,6 +67,15 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 设置流式下载监听器，数据到达时直接交给调用者，不会在内存中缓存整个文件，设置后会关闭硬盘缓存；不能和DownloadListener同时使用
+     * @return DownloadHelper
+     */
+    public DownloadHelper streamListener(DownloadStreamListener streamListener){
+        this.streamListener = streamListener;
+        return this;
+    }
+
     /**
      * 关闭硬盘缓存
      * @return DownloadHelper
@@ -70,6 +85,15 @@ public class DownloadHelper {
         return this;
     }
 
+    /**
+     * 标记为预取请求，当网络策略不允许预取时（例如慢速网络或计费网络）直接返回失败
+     * @return DownloadHelper
+     */
+    public DownloadHelper prefetch() {
+        this.prefetch = true;
+        return this;
+    }
+
     /**
      * 设置进度监听器
      * @param progressListener 进度监听器
@@ -111,6 +135,16 @@ public class DownloadHelper {
      * @return RequestFuture 你可以通过RequestFuture来查看请求的状态或者取消这个请求
      */
     public RequestFuture fire(){
+        // 流式下载不经过硬盘缓存，开始、失败和取消的回调转给流式下载监听器
+        if(streamListener != null){
+            // 流式下载没有文件或字节数组可以交给DownloadListener，同时设置的话是用错了
+            if(downloadListener != null){
+                throw new IllegalStateException("streamListener and listener can not be used together");
+            }
+            enableDiskCache = false;
+            downloadListener = new StreamListenerAdapter(streamListener);
+        }
+
         // 执行请求
         if(downloadListener != null){
             downloadListener.onStarted();
@@ -139,6 +173,17 @@ public class DownloadHelper {
             return null;
         }
 
+        // 当前网络状况不允许预取
+        if(prefetch && !spear.getConfiguration().getNetworkPolicy().isPrefetchAllowed()){
+            if(Spear.isDebugMode()){
+                Log.w(Spear.TAG, NAME + "：" + "当前网络状况不允许预取" + " URI" + "=" + uri);
+            }
+            if(downloadListener != null){
+                downloadListener.onFailed(FailureCause.PREFETCH_NOT_ALLOWED);
+            }
+            return null;
+        }
+
         // 创建请求
         DownloadRequest request = new DownloadRequest();
 
@@ -147,11 +192,49 @@ public class DownloadHelper {
         request.setSpear(spear);
         request.setImageScheme(imageScheme);
         request.setEnableDiskCache(enableDiskCache);
+        request.setTrafficClass(prefetch ? TrafficClass.PREFETCH : TrafficClass.BACKGROUND);
 
         request.setDownloadListener(downloadListener);
+        request.setStreamListener(streamListener);
         request.setProgressListener(progressListener);
 
         request.runDispatch();
         return new RequestFuture(request);
     }
+
+    /**
+     * 把DownloadListener的开始、失败和取消回调转给DownloadStreamListener，完成回调由DownloadRequest直接调用
+     */
+    private static class StreamListenerAdapter implements DownloadListener {
+        private DownloadStreamListener streamListener;
+
+        public StreamListenerAdapter(DownloadStreamListener streamListener) {
+            this.streamListener = streamListener;
+        }
+
+        @Override
+        public void onStarted() {
+            streamListener.onStarted();
+        }
+
+        @Override
+        public void onCompleted(File cacheFile, boolean isFromNetwork) {
+
+        }
+
+        @Override
+        public void onCompleted(byte[] data) {
+
+        }
+
+        @Override
+        public void onFailed(FailureCause failureCause) {
+            streamListener.onFailed(failureCause);
+        }
+
+        @Override
+        public void onCanceled() {
+            streamListener.onCanceled();
+        }
+    }
 }
@@ -19,6 +19,7 @@ package me.xiaopan.android.spear;
 import android.util.Log;
 import android.widget.ImageView;
 
+import me.xiaopan.android.spear.download.TrafficClass;
 import me.xiaopan.android.spear.process.ImageProcessor;
 import me.xiaopan.android.spear.request.DownloadRequest;
 import me.xiaopan.android.spear.request.LoadListener;
@@ -236,6 +237,7 @@ public class LoadHelper {
         request.setSpear(spear);
         request.setImageScheme(imageScheme);
         request.setEnableDiskCache(enableDiskCache);
+        request.setTrafficClass(TrafficClass.FOREGROUND);
 
         request.setMaxsize(maxsize);
         request.setResize(resize);
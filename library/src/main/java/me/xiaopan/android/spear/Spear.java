@@ -18,14 +18,28 @@ package me.xiaopan.android.spear;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import me.xiaopan.android.spear.cache.DiskCacheDeduplicator;
+import me.xiaopan.android.spear.cache.PackedDiskCache;
+import me.xiaopan.android.spear.download.DownloadQueue;
+import me.xiaopan.android.spear.download.NetworkPolicy;
 import me.xiaopan.android.spear.request.DisplayRequest;
 import me.xiaopan.android.spear.request.DownloadListener;
+import me.xiaopan.android.spear.request.DownloadStreamListener;
 import me.xiaopan.android.spear.request.LoadListener;
 import me.xiaopan.android.spear.request.RequestOptions;
 import me.xiaopan.android.spear.util.AsyncDrawable;
@@ -41,11 +55,126 @@ public class Spear {
     private static Map<Object, RequestOptions> optionsMap;
     private Configuration configuration;
     private boolean pause;
+    private boolean offlineMode;
+    private DownloadQueue downloadQueue;
+    private CountDownLatch warmUpLatch;  // 预热完成之前请求不分发
+    private boolean warmUpStarted;
+    private List<Runnable> pendingDispatchTasks = new LinkedList<Runnable>();  // 预热完成之前提交的分发任务
 
 	private Spear(Context context){
         this.configuration = new Configuration(context);
+        this.warmUpLatch = new CountDownLatch(1);
 	}
 
+    /**
+     * 在后台线程中预热，创建磁盘缓存器等组件并准备缓存目录和索引，在此之前分发的请求先存起来，预热完成后再交给分发线程
+     * <br>要在设置完Configuration中的磁盘缓存器等组件之后调用，例如在Application.onCreate()中；不调用的话第一个请求分发时会自动预热
+     */
+    public void warmUp(){
+        synchronized (this){
+            if(warmUpStarted){
+                return;
+            }
+            warmUpStarted = true;
+        }
+        createWarmUpExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    configuration.getDiskCache().prepare();
+                    PackedDiskCache packedDiskCache = configuration.getPackedDiskCache();
+                    if(packedDiskCache != null){
+                        packedDiskCache.prepare();
+                    }
+                    DiskCacheDeduplicator diskCacheDeduplicator = configuration.getDiskCacheDeduplicator();
+                    if(diskCacheDeduplicator != null){
+                        diskCacheDeduplicator.prepare();
+                    }
+                    configuration.getImageDownloader();
+                    configuration.getRequestExecutor();
+                } finally {
+                    warmUpLatch.countDown();
+                    dispatchPendingTasks();
+                }
+                if(debugMode){
+                    Log.d(TAG, "预热完成，耗时" + (System.currentTimeMillis() - startTime) + "毫秒");
+                }
+
+                // 启动后整理一次磁盘缓存，清理上次崩溃残留的临时文件
+                configuration.getDiskCacheJanitor().requestTrim();
+            }
+        });
+    }
+
+    /**
+     * 预热只执行一次，线程用完就退出
+     */
+    private static Executor createWarmUpExecutor(){
+        return new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Spear-WarmUp");
+            }
+        });
+    }
+
+    /**
+     * 提交分发任务，预热完成之前先存起来，不占用分发线程
+     * @param task 分发任务
+     */
+    public void dispatch(Runnable task){
+        synchronized (this){
+            if(warmUpLatch.getCount() != 0){
+                pendingDispatchTasks.add(task);
+                task = null;
+            }
+        }
+        if(task != null){
+            configuration.getRequestExecutor().getRequestDispatchExecutor().execute(task);
+        }else{
+            warmUp();
+        }
+    }
+
+    /**
+     * 预热完成后把存起来的分发任务交给分发线程
+     */
+    private void dispatchPendingTasks(){
+        List<Runnable> tasks;
+        synchronized (this){
+            tasks = pendingDispatchTasks;
+            pendingDispatchTasks = new LinkedList<Runnable>();
+        }
+        Executor dispatchExecutor = configuration.getRequestExecutor().getRequestDispatchExecutor();
+        for(Runnable task : tasks){
+            dispatchExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 等待预热完成，会阻塞当前线程，不要在主线程中调用
+     */
+    public void awaitWarmUp(){
+        if(warmUpLatch.getCount() == 0){
+            return;
+        }
+        warmUp();
+        try {
+            warmUpLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 是否已经预热完成
+     * @return 是否已经预热完成
+     */
+    public boolean isWarmedUp() {
+        return warmUpLatch.getCount() == 0;
+    }
+
     /**
      * 获取图片加载器的实例
      * @param context 用来初始化配置
@@ -92,6 +221,30 @@ public class Spear {
         return pause;
     }
 
+    /**
+     * 设置离线模式，离线模式下只使用磁盘缓存，磁盘缓存中没有的图片会直接失败，不再访问网络
+     * @param offlineMode 是否开启离线模式
+     */
+    public void setOfflineMode(boolean offlineMode) {
+        this.offlineMode = offlineMode;
+    }
+
+    /**
+     * 是否开启了离线模式
+     * @return 是否开启了离线模式
+     */
+    public boolean isOfflineMode() {
+        return offlineMode;
+    }
+
+    /**
+     * 是否处于离线状态，开启了离线模式或者当前没有网络都算离线
+     * @return 是否处于离线状态
+     */
+    public boolean isOffline() {
+        return offlineMode || configuration.getNetworkPolicy().getNetworkQuality() == NetworkPolicy.NetworkQuality.NONE;
+    }
+
     /**
      * 下载
      * @param uri 支持以下2种类型
@@ -105,6 +258,32 @@ public class Spear {
 		 return configuration.getHelperFactory().newDownloadHelper(this, uri).listener(downloadListener);
 	}
 
+    /**
+     * 流式下载，数据到达时直接交给调用者，不会在内存中缓存整个文件，也不会写入磁盘缓存，适合分享、导出大图等场景
+     * @param uri 支持以下2种类型
+     * <blockquote>“http://site.com/image.png“  // from Web
+     * <br>“https://site.com/image.png“ // from Web
+     * </blockquote>
+     * @param streamListener 流式下载监听器
+     * @return DownloadHelper 你可以继续设置一些参数，最后调用fire()方法开始下载
+     */
+	public DownloadHelper downloadStream(String uri, DownloadStreamListener streamListener){
+		 return configuration.getHelperFactory().newDownloadHelper(this, uri).streamListener(streamListener);
+	}
+
+
+
+    /**
+     * 获取持久化的下载队列，适合批量缓存图片，进程被杀死后调用DownloadQueue.start()就可以继续下载
+     * @return 持久化的下载队列
+     */
+    public synchronized DownloadQueue getDownloadQueue() {
+        if(downloadQueue == null){
+            downloadQueue = new DownloadQueue(this);
+        }
+        return downloadQueue;
+    }
+
 
 
     /**
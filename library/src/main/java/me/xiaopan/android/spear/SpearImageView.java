@@ -33,10 +33,12 @@ import android.widget.Scroller;
 
 import java.io.File;
 
+import me.xiaopan.android.spear.cache.MemoryCache;
 import me.xiaopan.android.spear.request.DisplayListener;
 import me.xiaopan.android.spear.request.ImageFrom;
 import me.xiaopan.android.spear.request.ProgressListener;
 import me.xiaopan.android.spear.request.RequestFuture;
+import me.xiaopan.android.spear.util.AsyncDrawable;
 import me.xiaopan.android.spear.util.FailureCause;
 import me.xiaopan.android.spear.util.ImageScheme;
 import me.xiaopan.android.spear.util.RecyclingBitmapDrawable;
@@ -461,16 +463,37 @@ public class SpearImageView extends ImageView{
      * @param drawable Drawable
      * @param isDisplayed 是否已显示
      */
-    private static void notifyDrawable(Drawable drawable, final boolean isDisplayed) {
+    private void notifyDrawable(Drawable drawable, final boolean isDisplayed) {
         if (drawable instanceof RecyclingBitmapDrawable) {
+            // 先更新内存缓存中的显示计数，不再显示的位图会先放回缓存，然后才判断要不要回收
+            notifyMemoryCache((BitmapDrawable) drawable, isDisplayed);
             // The drawable is a CountingBitmapDrawable, so notify it
             ((RecyclingBitmapDrawable) drawable).setIsDisplayed(isDisplayed);
+        } else if (drawable instanceof AsyncDrawable) {
+            // The placeholder may be a drawable from the memory cache
+            notifyDrawable(((AsyncDrawable) drawable).getPlaceholderDrawable(), isDisplayed);
         } else if (drawable instanceof LayerDrawable) {
             // The drawable is a LayerDrawable, so recurse on each layer
             LayerDrawable layerDrawable = (LayerDrawable) drawable;
             for (int i = 0, z = layerDrawable.getNumberOfLayers(); i < z; i++) {
                 notifyDrawable(layerDrawable.getDrawable(i), isDisplayed);
             }
+        } else if (drawable instanceof BitmapDrawable) {
+            notifyMemoryCache((BitmapDrawable) drawable, isDisplayed);
+        }
+    }
+
+    /**
+     * 更新内存缓存中的显示计数
+     * @param bitmapDrawable 位图
+     * @param isDisplayed 是否已显示
+     */
+    private void notifyMemoryCache(BitmapDrawable bitmapDrawable, boolean isDisplayed){
+        MemoryCache memoryCache = Spear.with(getContext()).getConfiguration().getMemoryCache();
+        if(isDisplayed){
+            memoryCache.retainActive(bitmapDrawable);
+        }else{
+            memoryCache.releaseActive(bitmapDrawable);
         }
     }
 
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.download.DownloadUtils;
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * 默认的磁盘缓存去重器，用SHA-1摘要命名共享缓存文件（“sha1-摘要”），共享文件跟普通缓存文件放在一起，一样按活跃度淘汰；
+ * <br>缓存KEY到摘要的索引以日志的形式保存，共享文件被淘汰后对应的记录在下次访问时删除；被固定的缓存文件不去重
+ */
+public class DefaultDiskCacheDeduplicator implements DiskCacheDeduplicator {
+    private static final String NAME = "DefaultDiskCacheDeduplicator";
+    private static final String INDEX_FILE_NAME = "spear_digest.journal";
+    private static final String DIGEST_KEY_PREFIX = "sha1-";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private File indexFile;
+    private final Object loadLock = new Object();
+    private volatile Index index;    // 为null表示还没有读取索引，读取完成后才发布，查询不用加锁
+
+    public DefaultDiskCacheDeduplicator(Context context) {
+        this.indexFile = new File(context.getCacheDir(), INDEX_FILE_NAME);
+    }
+
+    @Override
+    public File getCacheFile(DownloadRequest request) {
+        String key = createKey(request.getCacheKey());
+        Index index = load();
+        String digest = index.digests.get(key);
+        if(digest == null){
+            return null;
+        }
+
+        File sharedFile = request.getSpear().getConfiguration().getDiskCache().getCacheFileByUri(DIGEST_KEY_PREFIX + digest);
+        if(sharedFile != null && sharedFile.exists()){
+            return sharedFile;
+        }
+
+        // 共享文件已经被淘汰了
+        if(index.digests.remove(key, digest)){
+            writeIndex(index, key, null);
+        }
+        return null;
+    }
+
+    @Override
+    public File deduplicate(DownloadRequest request, File cacheFile) {
+        DiskCache diskCache = request.getSpear().getConfiguration().getDiskCache();
+        if(cacheFile == null || !cacheFile.exists() || diskCache.isPinned(request.getCacheKey())){
+            return cacheFile;
+        }
+
+        String digest = computeDigest(cacheFile);
+        File sharedFile = digest != null ? diskCache.getCacheFileByUri(DIGEST_KEY_PREFIX + digest) : null;
+        if(sharedFile == null){
+            return cacheFile;
+        }
+        if(sharedFile.equals(cacheFile)){
+            return cacheFile;
+        }
+
+        boolean duplicated = sharedFile.exists();
+        if(duplicated){
+            // 内容相同的文件已经有了，新下载的就不要了，更新共享文件的活跃度
+            if(!cacheFile.delete()){
+                Log.w(Spear.TAG, NAME + "：" + "删除重复的缓存文件失败：" + cacheFile.getPath() + "；" + request.getName());
+            }
+            if(!sharedFile.setLastModified(System.currentTimeMillis())){
+                Log.w(Spear.TAG, NAME + "：" + "更新最后修改时间失败：" + sharedFile.getPath());
+            }
+        }else if(!cacheFile.renameTo(sharedFile)){
+            return cacheFile;
+        }
+
+        String key = createKey(request.getCacheKey());
+        Index index = load();
+        if(!digest.equals(index.digests.put(key, digest))){
+            index.canonicalKeys.putIfAbsent(digest, request.getCacheKey());
+            writeIndex(index, key, digest);
+        }
+        if(duplicated && Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "内容重复，共享已有的缓存文件" + "；" + sharedFile.getName() + "；" + request.getName());
+        }
+        return sharedFile;
+    }
+
+    @Override
+    public String getCanonicalKey(String cacheKey) {
+        // 在主线程中调用，不加锁，还没有读取索引就原样返回
+        Index index = this.index;
+        if(index == null){
+            return cacheKey;
+        }
+        String digest = index.digests.get(createKey(cacheKey));
+        String canonicalKey = digest != null ? index.canonicalKeys.get(digest) : null;
+        return canonicalKey != null ? canonicalKey : cacheKey;
+    }
+
+    @Override
+    public void prepare() {
+        load();
+    }
+
+    @Override
+    public void clear() {
+        synchronized (loadLock){
+            Index oldIndex = index;
+            index = null;
+            if(oldIndex != null){
+                // 等正在写的记录写完再删
+                synchronized (oldIndex){
+                    deleteIndexFile();
+                }
+            }else{
+                deleteIndexFile();
+            }
+        }
+    }
+
+    private void deleteIndexFile(){
+        if(indexFile.exists() && !indexFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除索引失败：" + indexFile.getPath());
+        }
+    }
+
+    /**
+     * 读取索引，只在第一次访问时读取，读取完成后才发布
+     */
+    private Index load(){
+        Index index = this.index;
+        if(index != null){
+            return index;
+        }
+
+        synchronized (loadLock){
+            if(this.index != null){
+                return this.index;
+            }
+            index = new Index();
+            if(indexFile.exists()){
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new FileReader(indexFile));
+                    String line;
+                    while((line = reader.readLine()) != null){
+                        String[] items = line.split(" ");
+                        if(items.length == 1){
+                            index.digests.remove(items[0]);
+                        }else if(items.length == 2){
+                            index.digests.put(items[0], items[1]);
+                            index.canonicalKeys.putIfAbsent(items[1], decodeKey(items[0]));
+                        }else{
+                            continue;
+                        }
+                        index.lineCount++;
+                    }
+                } catch (IOException e) {
+                    Log.w(Spear.TAG, NAME + "：" + "读取索引失败：" + e.getMessage());
+                } finally {
+                    DownloadUtils.close(reader);
+                }
+            }
+            this.index = index;
+            return index;
+        }
+    }
+
+    /**
+     * 追加一条记录到索引的末尾，无效的记录太多了就重写一次；只锁住索引文件，不影响查询
+     * @param digest null：删除
+     */
+    private void writeIndex(Index index, String key, String digest){
+        synchronized (index){
+            // 已经被清除了
+            if(this.index != index){
+                return;
+            }
+            boolean rewrite = index.lineCount + 1 > index.digests.size() * 2 + 100;
+            BufferedWriter writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(indexFile, !rewrite));
+                if(rewrite){
+                    int lineCount = 0;
+                    for(Map.Entry<String, String> entry : index.digests.entrySet()){
+                        writer.write(entry.getKey() + " " + entry.getValue());
+                        writer.newLine();
+                        lineCount++;
+                    }
+                    index.lineCount = lineCount;
+                }else{
+                    writer.write(digest != null ? key + " " + digest : key);
+                    writer.newLine();
+                    index.lineCount++;
+                }
+            } catch (IOException e) {
+                Log.w(Spear.TAG, NAME + "：" + "写入索引失败：" + e.getMessage());
+            } finally {
+                DownloadUtils.close(writer);
+            }
+        }
+    }
+
+    /**
+     * 计算文件的SHA-1摘要
+     * @return null：计算失败
+     */
+    private static String computeDigest(File file){
+        InputStream inputStream = null;
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            inputStream = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int readLength;
+            while((readLength = inputStream.read(buffer)) != -1){
+                messageDigest.update(buffer, 0, readLength);
+            }
+            byte[] digest = messageDigest.digest();
+            char[] chars = new char[digest.length * 2];
+            for(int i = 0; i < digest.length; i++){
+                chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+                chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "计算摘要失败：" + e.getMessage() + "；" + file.getPath());
+            return null;
+        } finally {
+            DownloadUtils.close(inputStream);
+        }
+    }
+
+    private static String createKey(String cacheKey){
+        try {
+            return URLEncoder.encode(cacheKey, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return cacheKey;
+        }
+    }
+
+    private static String decodeKey(String key){
+        try {
+            return URLDecoder.decode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return key;
+        }
+    }
+
+    private static class Index {
+        private ConcurrentHashMap<String, String> digests = new ConcurrentHashMap<String, String>();    // 缓存KEY到摘要
+        private ConcurrentHashMap<String, String> canonicalKeys = new ConcurrentHashMap<String, String>();  // 摘要到第一个缓存KEY
+        private int lineCount;  // 索引文件的行数，写的时候锁住Index
+    }
+}
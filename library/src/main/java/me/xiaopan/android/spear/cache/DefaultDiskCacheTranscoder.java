@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.download.DownloadUtils;
+import me.xiaopan.android.spear.request.LoadRequest;
+import me.xiaopan.android.spear.util.ImageFormat;
+import me.xiaopan.android.spear.util.ImageSize;
+import me.xiaopan.android.spear.util.LruCache;
+
+/**
+ * 默认的磁盘缓存转码器
+ * <br>转码后的尺寸是这个URI请求过的最大maxsize，但不超过设置的最大尺寸（默认为屏幕尺寸的1.5倍），缩小后两边都不小于这个尺寸；
+ * <br>支持解码WebP的系统上编码成WebP，否则不透明的编码成JPEG，透明的编码成PNG；GIF不转码；
+ * <br>转码过的文件及其尺寸记录在索引中，之后请求更大的尺寸时就重新下载原图
+ */
+public class DefaultDiskCacheTranscoder implements DiskCacheTranscoder {
+    private static final String NAME = "DefaultDiskCacheTranscoder";
+    private static final String INDEX_FILE_NAME = "spear_transcode.journal";
+    private static final float MIN_SCALE_GAIN = 0.75f;  // 缩小后至少要小于原尺寸的这个比例才转码，否则不值得有损地重新编码
+    private static final int DEFAULT_QUALITY = 85;
+    private static final int MAX_REQUESTED_SIZE_COUNT = 200;    // 最多记住多少个URI请求过的最大尺寸
+
+    private File indexFile;
+    private int maxWidth;
+    private int maxHeight;
+    private int quality = DEFAULT_QUALITY;
+    private Map<String, ImageSize> transcodedSizes;    // 转码过的文件及其尺寸，为null表示还没有读取索引
+    private int indexLineCount;
+    private LruCache<String, ImageSize> requestedSizes; // URI请求过的最大尺寸
+
+    public DefaultDiskCacheTranscoder(Context context) {
+        this.indexFile = new File(context.getCacheDir(), INDEX_FILE_NAME);
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        this.maxWidth = (int) (displayMetrics.widthPixels*1.5f);
+        this.maxHeight = (int) (displayMetrics.heightPixels*1.5f);
+        this.requestedSizes = new LruCache<String, ImageSize>(MAX_REQUESTED_SIZE_COUNT);
+    }
+
+    /**
+     * 设置最大尺寸，转码后的尺寸不会超过这个尺寸
+     * @param maxWidth 最大宽度，默认为屏幕宽度的1.5倍
+     * @param maxHeight 最大高度，默认为屏幕高度的1.5倍
+     */
+    public void setMaxSize(int maxWidth, int maxHeight) {
+        if(maxWidth > 0 && maxHeight > 0){
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+    }
+
+    /**
+     * 设置编码质量，对PNG无效
+     * @param quality 编码质量，0到100，默认85
+     */
+    public void setQuality(int quality) {
+        if(quality > 0 && quality <= 100){
+            this.quality = quality;
+        }
+    }
+
+    @Override
+    public boolean transcode(LoadRequest request) {
+        File cacheFile = request.getCacheFile();
+        if(cacheFile == null || !cacheFile.exists()){
+            return false;
+        }
+        ImageSize targetSize = getTargetSize(request);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(cacheFile.getPath(), options);
+        if(options.outWidth <= 0 || options.outHeight <= 0 || ImageFormat.valueOfMimeType(options.outMimeType) == ImageFormat.GIF){
+            return false;
+        }
+
+        // 缩小后两边都不小于目标尺寸
+        float scale = Math.max((float) targetSize.getWidth()/options.outWidth, (float) targetSize.getHeight()/options.outHeight);
+        if(scale > MIN_SCALE_GAIN){
+            return false;
+        }
+        int newWidth = Math.max(1, Math.round(options.outWidth * scale));
+        int newHeight = Math.max(1, Math.round(options.outHeight * scale));
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while(options.outWidth/(options.inSampleSize*2) >= newWidth && options.outHeight/(options.inSampleSize*2) >= newHeight){
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(cacheFile.getPath(), options);
+        if(bitmap == null){
+            return false;
+        }
+        if(bitmap.getWidth() != newWidth || bitmap.getHeight() != newHeight){
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
+            if(scaledBitmap != bitmap){
+                bitmap.recycle();
+                bitmap = scaledBitmap;
+            }
+        }
+
+        Bitmap.CompressFormat compressFormat;
+        ImageFormat imageFormat;
+        if(ImageFormat.WEBP.isDecodeSupported()){
+            compressFormat = Bitmap.CompressFormat.WEBP;
+            imageFormat = ImageFormat.WEBP;
+        }else if(bitmap.hasAlpha()){
+            compressFormat = Bitmap.CompressFormat.PNG;
+            imageFormat = ImageFormat.PNG;
+        }else{
+            compressFormat = Bitmap.CompressFormat.JPEG;
+            imageFormat = ImageFormat.JPEG;
+        }
+
+        // 先写到临时文件，比原文件小才替换
+        long oldLength = cacheFile.length();
+        File tempFile = new File(cacheFile.getPath() + ".temp");
+        OutputStream outputStream = null;
+        boolean success = false;
+        try {
+            outputStream = new FileOutputStream(tempFile, false);
+            success = bitmap.compress(compressFormat, quality, outputStream);
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "写入转码文件失败：" + e.getMessage() + "；" + request.getName());
+        } finally {
+            DownloadUtils.close(outputStream);
+            bitmap.recycle();
+        }
+        success = success && tempFile.length() > 0 && tempFile.length() < oldLength && tempFile.renameTo(cacheFile);
+        if(!success){
+            if(tempFile.exists() && !tempFile.delete()){
+                Log.w(Spear.TAG, NAME + "：" + "删除临时文件失败：" + tempFile.getPath());
+            }
+            return false;
+        }
+
+        putTranscodedSize(createKey(request.getCacheKey()), targetSize);
+        request.setImageFormat(imageFormat);
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "转码完成" + "；" + options.outWidth + "x" + options.outHeight + " -> " + newWidth + "x" + newHeight + "；" + oldLength + " -> " + cacheFile.length() + "；" + request.getName());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isTooSmall(LoadRequest request) {
+        String key = createKey(request.getCacheKey());
+        ImageSize neededSize = getTargetSize(request);
+        synchronized (this){
+            ImageSize transcodedSize = getTranscodedSizes().get(key);
+            if(transcodedSize == null || (transcodedSize.getWidth() >= neededSize.getWidth() && transcodedSize.getHeight() >= neededSize.getHeight())){
+                return false;
+            }
+            putTranscodedSize(key, null);
+        }
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "缓存的是转码后的小图，需要重新下载原图" + "；" + request.getName());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(String uri) {
+        String key = createKey(uri);
+        if(getTranscodedSizes().containsKey(key)){
+            putTranscodedSize(key, null);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        transcodedSizes = null;
+        if(indexFile.exists() && !indexFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除索引失败：" + indexFile.getPath());
+        }
+    }
+
+    /**
+     * 计算目标尺寸，记住这个URI请求过的最大尺寸，并且不超过设置的最大尺寸
+     */
+    private ImageSize getTargetSize(LoadRequest request){
+        int width = maxWidth;
+        int height = maxHeight;
+        ImageSize maxsize = request.getMaxsize();
+        if(maxsize != null){
+            synchronized (this){
+                ImageSize requestedSize = requestedSizes.get(request.getCacheKey());
+                if(requestedSize != null){
+                    maxsize = new ImageSize(Math.max(maxsize.getWidth(), requestedSize.getWidth()), Math.max(maxsize.getHeight(), requestedSize.getHeight()));
+                }
+                requestedSizes.put(request.getCacheKey(), maxsize);
+            }
+            width = Math.min(width, maxsize.getWidth());
+            height = Math.min(height, maxsize.getHeight());
+        }
+        return new ImageSize(width, height);
+    }
+
+    /**
+     * 获取转码记录，第一次调用时从索引中读取
+     */
+    private Map<String, ImageSize> getTranscodedSizes(){
+        if(transcodedSizes != null){
+            return transcodedSizes;
+        }
+
+        transcodedSizes = new HashMap<String, ImageSize>();
+        indexLineCount = 0;
+        if(!indexFile.exists()){
+            return transcodedSizes;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(indexFile));
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] items = line.split(" ");
+                if(items.length != 3){
+                    continue;
+                }
+                indexLineCount++;
+                try {
+                    int width = Integer.parseInt(items[1]);
+                    int height = Integer.parseInt(items[2]);
+                    if(width > 0 && height > 0){
+                        transcodedSizes.put(items[0], new ImageSize(width, height));
+                    }else{
+                        transcodedSizes.remove(items[0]);
+                    }
+                } catch (NumberFormatException e) {
+                    // 写了一半的记录，跳过
+                }
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "读取索引失败：" + e.getMessage());
+        } finally {
+            DownloadUtils.close(reader);
+        }
+        return transcodedSizes;
+    }
+
+    /**
+     * 保存转码记录，追加到索引的末尾，无效的记录太多了就重写一次
+     * @param size null：删除
+     */
+    private synchronized void putTranscodedSize(String key, ImageSize size){
+        Map<String, ImageSize> sizes = getTranscodedSizes();
+        if(size != null){
+            sizes.put(key, size);
+        }else{
+            sizes.remove(key);
+        }
+
+        boolean rewrite = indexLineCount + 1 > sizes.size() * 2 + 100;
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(indexFile, !rewrite));
+            if(rewrite){
+                for(Map.Entry<String, ImageSize> entry : sizes.entrySet()){
+                    writer.write(entry.getKey() + " " + entry.getValue().getWidth() + " " + entry.getValue().getHeight());
+                    writer.newLine();
+                }
+                indexLineCount = sizes.size();
+            }else{
+                writer.write(key + " " + (size != null ? size.getWidth() + " " + size.getHeight() : "0 0"));
+                writer.newLine();
+                indexLineCount++;
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "写入索引失败：" + e.getMessage());
+        } finally {
+            DownloadUtils.close(writer);
+        }
+    }
+
+    private static String createKey(String uri){
+        try {
+            return URLEncoder.encode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return uri;
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package me.xiaopan.android.spear.cache;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
 
 import me.xiaopan.android.spear.request.DownloadRequest;
 
@@ -38,7 +40,7 @@ public interface DiskCache {
     public File createCacheFile(DownloadRequest request);
 
 	/**
-	 * 申请空间
+	 * 申请空间，只在设备剩余空间不足时才会同步删除文件，最大容量、最大数量和过期时间的限制由trim()在后台处理
 	 * @param length 尝试腾出足够的空间，删除的原则是按照活跃度（最后一次修改时间，每一次访问都会更新最后一次修改时间）来删除文件，直到腾出足够的空间
      * @return true：申请空间成功；false：申请空间失败
 	 */
@@ -57,7 +59,61 @@ public interface DiskCache {
     public void setMaxsize(int maxsize);
 
     /**
-     * 清除缓存
+     * 设置最大数量，默认为没有限制
+     * @param maxCount 最大数量
+     */
+    public void setMaxCount(int maxCount);
+
+    /**
+     * 设置过期时间，超过此时间没有使用过的缓存文件会被删除，默认为不过期
+     * @param maxAge 过期时间，单位毫秒
+     */
+    public void setMaxAge(long maxAge);
+
+    /**
+     * 是否支持多进程共享同一个缓存目录
+     */
+    public boolean isMultiProcess();
+
+    /**
+     * 尝试锁定缓存文件，多进程共享时用来防止多个进程同时下载同一个文件，只在isMultiProcess()返回true时调用
+     * @param cacheKey 缓存KEY
+     * @return 锁，下载完之后要调用release()释放；null：已经被其它进程锁住了
+     * @throws IOException 打开锁文件失败
+     */
+    public FileLock tryLockCacheFile(String cacheKey) throws IOException;
+
+    /**
+     * 准备缓存目录和索引，比较耗时，要在后台线程中执行，不调用的话会在第一次使用时准备
+     */
+    public void prepare();
+
+    /**
+     * 整理缓存，删除过期的、超出最大容量或最大数量的缓存文件以及残留的临时文件，比较耗时，要在后台线程中执行
+     */
+    public void trim();
+
+    /**
+     * 固定缓存文件，被固定的缓存文件在申请空间的时候不会被删除，适合需要离线使用的图片；直接用图片URI的话请调用Configuration.pin()
+     * @param uri 缓存KEY
+     */
+    public void pin(String uri);
+
+    /**
+     * 取消固定缓存文件
+     * @param uri 缓存KEY
+     */
+    public void unpin(String uri);
+
+    /**
+     * 缓存文件是否被固定了
+     * @param uri 缓存KEY
+     * @return 是否被固定了
+     */
+    public boolean isPinned(String uri);
+
+    /**
+     * 清除缓存，包括被固定的缓存文件，不会阻塞太久，文件可以在后台删除；只清除磁盘缓存本身，要连打包磁盘缓存器和转码、去重记录一起清除请用Configuration.clearDiskCache()
      */
     public void clear();
     
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import java.io.File;
+
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * 磁盘缓存去重器，按内容摘要存储缓存文件，不同URI（镜像、别名、重复上传）的相同内容只存一份，任何一个URI都能命中
+ */
+public interface DiskCacheDeduplicator {
+    /**
+     * 获取内容相同的共享缓存文件
+     * @param request 请求
+     * @return null：还没有记录或共享文件已经被删除了
+     */
+    public File getCacheFile(DownloadRequest request);
+
+    /**
+     * 刚下载完的缓存文件去重，内容相同的文件已经存在就删掉新下载的，否则把新下载的文件改成按摘要命名
+     * @param request 请求
+     * @param cacheFile 刚下载完的缓存文件
+     * @return 去重后的缓存文件，去重失败的话就是原来的缓存文件
+     */
+    public File deduplicate(DownloadRequest request, File cacheFile);
+
+    /**
+     * 获取内容相同的第一个缓存KEY，用来生成内存缓存ID，这样内容相同的URI可以共享内存缓存，不会读取索引
+     * @param cacheKey 缓存KEY
+     * @return 没有记录或者还没有读取索引就返回cacheKey
+     */
+    public String getCanonicalKey(String cacheKey);
+
+    /**
+     * 读取索引，比较耗时，要在后台线程中执行，不调用的话会在第一次使用时读取
+     */
+    public void prepare();
+
+    /**
+     * 清除所有记录
+     */
+    public void clear();
+}
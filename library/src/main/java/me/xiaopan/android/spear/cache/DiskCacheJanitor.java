@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import me.xiaopan.android.spear.Configuration;
+import me.xiaopan.android.spear.Spear;
+
+/**
+ * 磁盘缓存清洁工，在请求执行器空闲时于后台线程中调用DiskCache.trim()整理磁盘缓存，这样下载的时候就不用再同步删除文件了
+ * <br>每次有新的缓存文件时调用requestTrim()，多次调用会合并成一次，两次整理之间至少间隔30秒，一直不空闲的话最多推迟2分钟
+ * <br>已经移到打包磁盘缓存器中的缓存文件也通过requestDelete()交给它，空闲时再删，不会删掉别的请求正在读的文件
+ */
+public class DiskCacheJanitor {
+    private static final String NAME = "DiskCacheJanitor";
+    private static final long IDLE_CHECK_INTERVAL = 5 * 1000;   // 检查是否空闲的间隔
+    private static final long MIN_TRIM_INTERVAL = 30 * 1000;    // 两次整理之间的最小间隔
+    private static final long MAX_POSTPONE_TIME = 2 * 60 * 1000;    // 一直不空闲时最多推迟的时间
+
+    private Configuration configuration;
+    private ScheduledExecutorService executor;
+    private boolean scheduled;
+    private long requestTime;
+    private long lastTrimTime;
+    private Map<String, File> packedFiles = new HashMap<String, File>();   // 已经移到打包磁盘缓存器中等待删除的缓存文件
+
+    public DiskCacheJanitor(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * 请求整理磁盘缓存，会在请求执行器空闲时执行
+     */
+    public synchronized void requestTrim(){
+        if(scheduled){
+            return;
+        }
+        scheduled = true;
+        requestTime = SystemClock.elapsedRealtime();
+        schedule(Math.max(IDLE_CHECK_INTERVAL, lastTrimTime + MIN_TRIM_INTERVAL - requestTime));
+    }
+
+    /**
+     * 请求删除已经移到打包磁盘缓存器中的缓存文件，会在请求执行器空闲时执行
+     * @param uri 缓存KEY
+     * @param file 缓存文件
+     */
+    public synchronized void requestDelete(String uri, File file){
+        packedFiles.put(uri, file);
+        requestTrim();
+    }
+
+    private void schedule(long delay){
+        if(executor == null){
+            executor = Executors.newSingleThreadScheduledExecutor();
+        }
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                executeTrim();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void executeTrim(){
+        Map<String, File> deleteFiles;
+        synchronized (this){
+            long currentTime = SystemClock.elapsedRealtime();
+            if(!configuration.getRequestExecutor().isIdle() && currentTime - requestTime < MAX_POSTPONE_TIME){
+                schedule(IDLE_CHECK_INTERVAL);
+                return;
+            }
+            // 整理期间又有新的请求的话就在下一轮处理
+            scheduled = false;
+            lastTrimTime = currentTime;
+            deleteFiles = packedFiles;
+            packedFiles = new HashMap<String, File>();
+        }
+
+        // 打包磁盘缓存器中还有的才删，已经被删掉的说明又重新下载了
+        PackedDiskCache packedDiskCache = configuration.getPackedDiskCache();
+        for(Map.Entry<String, File> entry : deleteFiles.entrySet()){
+            if(packedDiskCache != null && packedDiskCache.contains(entry.getKey()) && entry.getValue().exists() && !entry.getValue().delete()){
+                Log.w(Spear.TAG, NAME + "：" + "删除已打包的缓存文件失败" + "；" + entry.getValue().getPath());
+            }
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        configuration.getDiskCache().trim();
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "整理磁盘缓存耗时" + (SystemClock.elapsedRealtime() - startTime) + "毫秒");
+        }
+    }
+}
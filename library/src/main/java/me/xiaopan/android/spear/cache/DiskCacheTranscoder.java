@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import me.xiaopan.android.spear.request.LoadRequest;
+
+/**
+ * 磁盘缓存转码器，刚下载下来的图片在解码之前缩小到够用的尺寸并重新编码后再存入磁盘缓存，以后每次读取和解码都更快
+ */
+public interface DiskCacheTranscoder {
+    /**
+     * 转码请求的缓存文件，会直接替换缓存文件
+     * @param request 加载请求，缓存文件是刚从网络下载下来的
+     * @return true：已转码
+     */
+    public boolean transcode(LoadRequest request);
+
+    /**
+     * 缓存文件是否是转码过的并且比这次请求需要的小，是的话需要删掉缓存文件重新下载原图
+     * @param request 加载请求
+     * @return true：太小了
+     */
+    public boolean isTooSmall(LoadRequest request);
+
+    /**
+     * 删除转码记录，缓存文件重新从网络下载了原图时调用，否则会把原图当成转码过的小图
+     * @param uri 缓存KEY
+     */
+    public void remove(String uri);
+
+    /**
+     * 清除转码记录
+     */
+    public void clear();
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+/**
+ * 失败URI缓存器，用来记录最近下载失败（例如404）的URI，在有效期内再次请求时直接返回失败，不再访问网络
+ */
+public interface FailedUriCache {
+    /**
+     * 记录一个下载失败的URI
+     * @param uri 下载失败的URI
+     */
+    public void put(String uri);
+
+    /**
+     * 给定的URI是否在有效期内下载失败过
+     * @param uri URI
+     * @return true：最近下载失败过，不需要再次请求；false：没有失败记录或记录已过期
+     */
+    public boolean isFailed(String uri);
+
+    /**
+     * 删除给定URI的失败记录
+     * @param uri URI
+     */
+    public void remove(String uri);
+
+    /**
+     * 设置失败记录的有效期
+     * @param expireTime 有效期，单位毫秒，默认5分钟
+     */
+    public void setExpireTime(long expireTime);
+
+    /**
+     * 清除所有失败记录
+     */
+    public void clear();
+}
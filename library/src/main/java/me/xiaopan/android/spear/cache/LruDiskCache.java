@@ -20,18 +20,30 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
 import android.os.StatFs;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.FileLock;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.download.DownloadUtils;
 import me.xiaopan.android.spear.request.DownloadRequest;
 import me.xiaopan.android.spear.util.FileLastModifiedComparator;
 
@@ -42,11 +54,25 @@ public class LruDiskCache implements DiskCache {
 	private static final String LOG_NAME = "LruDiskCache";
     private static final String DEFAULT_DIRECTORY_NAME = "spear";
     private static final int DEFAULT_RESERVE_SIZE = 100 * 1024 * 1024;
+    private static final String PINNED_FILE_NAME = ".pinned";  // 记录被固定的缓存文件名称的文件，以“.”开头的文件不会被当做缓存文件
+    private static final String TEMP_FILE_SUFFIX = ".temp";
+    private static final long TEMP_FILE_EXPIRED_TIME = 10 * 60 * 1000; // 超过此时间没有更新的临时文件就认为是崩溃等原因残留下来的
+    private static final String LOCK_FILE_NAME = ".lock";  // 多进程共享时用的锁文件
+    private static final long INDEX_LOCK_POSITION = Long.MAX_VALUE - 1;   // 缓存文件的锁以KEY的哈希值为位置，索引的锁放在最后面
+    private static final String TOMBSTONE_INFIX = ".tombstone.";  // 清除缓存时缓存目录被重命名为“.目录名.tombstone.时间”，然后在后台删除
 	private File diskCacheDir;	//缓存目录
     private Context context;
     private FileLastModifiedComparator fileLastModifiedComparator;
     private int reserveSize = DEFAULT_RESERVE_SIZE;
     private int maxsize = -1;
+    private int maxCount = -1;
+    private long maxAge = -1;
+    private Set<String> pinnedFileNames;    // 被固定的缓存文件名称
+    private ExecutorService tombstoneExecutor;  // 在后台删除被清除的缓存目录
+    private volatile boolean multiProcess;  // 是否支持多进程共享
+    private ProcessLockFile processLockFile;
+    private final Object indexLockMonitor = new Object();   // 同一个进程内索引的锁要先在这里互斥，持有它的时候不能再去拿this的锁
+    private long pinnedFileLastModified;
 
     public LruDiskCache(Context context, File diskCacheDir){
         this.context = context;
@@ -85,6 +111,8 @@ public class LruDiskCache implements DiskCache {
 			throw new IllegalArgumentException(cacheDir.getPath() + "not a directory");
 		}
 		this.diskCacheDir = cacheDir;
+        this.pinnedFileNames = null;
+        closeProcessLockFile();
 	}
 
     @Override
@@ -99,6 +127,76 @@ public class LruDiskCache implements DiskCache {
         this.maxsize = maxsize;
     }
 
+    @Override
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    @Override
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * 设置是否支持多进程共享同一个缓存目录，开启后用文件锁协调多个进程：同一个缓存文件同时只有一个进程在下载，
+     * 淘汰文件和修改固定列表同时只有一个进程在进行，固定列表被其它进程修改后会重新读取
+     * @param multiProcess 是否支持多进程共享，默认不支持
+     */
+    public void setMultiProcess(boolean multiProcess) {
+        this.multiProcess = multiProcess;
+    }
+
+    @Override
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    @Override
+    public FileLock tryLockCacheFile(String cacheKey) throws IOException {
+        ProcessLockFile lockFile = getProcessLockFile();
+        if(lockFile == null){
+            throw new IOException("disk cache dir unavailable");
+        }
+        return lockFile.tryLock(cacheKey.hashCode() & 0x7fffffffL);
+    }
+
+    private synchronized ProcessLockFile getProcessLockFile(){
+        if(processLockFile == null){
+            File cacheDir = getDiskCacheDir();
+            if(cacheDir == null){
+                return null;
+            }
+            processLockFile = new ProcessLockFile(new File(cacheDir, LOCK_FILE_NAME));
+        }
+        return processLockFile;
+    }
+
+    /**
+     * 关闭旧目录的锁文件，不然会泄露文件描述符，其它进程也会一直锁着旧的文件
+     */
+    private synchronized void closeProcessLockFile(){
+        if(processLockFile != null){
+            processLockFile.close();
+            processLockFile = null;
+        }
+    }
+
+    /**
+     * 多进程共享时锁定索引，要先拿到indexLockMonitor
+     * @return 锁；null：没有开启多进程支持或者加锁失败
+     */
+    private FileLock lockIndex(ProcessLockFile lockFile){
+        if(!multiProcess || lockFile == null){
+            return null;
+        }
+        try {
+            return lockFile.lock(INDEX_LOCK_POSITION);
+        } catch (IOException e) {
+            Log.w(LOG_NAME, "锁定索引失败：" + e.getMessage());
+            return null;
+        }
+    }
+
     @Override
 	public synchronized boolean applyForSpace(long cacheFileLength){
         File cacheDir = getDiskCacheDir();
@@ -106,19 +204,10 @@ public class LruDiskCache implements DiskCache {
             return false;
         }
 
-        // 总的可用空间
+        // 总的可用空间，够用就直接返回，最大容量的限制交给trim()在后台处理
         long totalAvailableSize = Math.abs(getAvailableSize(cacheDir.getPath()));
-        long usedSize = 0;
-        // 如果剩余空间够用
         if(totalAvailableSize-reserveSize > cacheFileLength){
-            if(maxsize > 0){
-                usedSize = Math.abs(countFileLength(cacheDir));
-                if(usedSize+cacheFileLength < maxsize){
-                    return true;
-                }
-            }else{
-                return true;
-            }
+            return true;
         }
 
         // 获取所有缓存文件
@@ -131,22 +220,26 @@ public class LruDiskCache implements DiskCache {
             // 把所有文件按照最后修改日期排序
             Arrays.sort(cacheFiles, fileLastModifiedComparator);
 
-            // 然后按照顺序来删除文件直到腾出足够的空间或文件删完为止
-            for(File file : cacheFiles){
-                Log.w(LOG_NAME, "删除缓存文件：" + file.getPath());
-                long currentFileLength = file.length();
-                if(file.delete()){
-                    totalAvailableSize += currentFileLength;
-                    if(totalAvailableSize-reserveSize > cacheFileLength){
-                        if(maxsize > 0){
-                            usedSize -= currentFileLength;
-                            if(usedSize+cacheFileLength < maxsize){
+            // 然后按照顺序来删除文件直到腾出足够的空间或文件删完为止，被固定的文件和正在下载的临时文件不删除
+            synchronized (indexLockMonitor){
+                FileLock indexLock = lockIndex(getProcessLockFile());
+                try {
+                    Set<String> pinnedFileNames = getPinnedFileNames();
+                    for(File file : cacheFiles){
+                        if(file.getName().startsWith(".") || file.getName().endsWith(TEMP_FILE_SUFFIX) || pinnedFileNames.contains(file.getName())){
+                            continue;
+                        }
+                        Log.w(LOG_NAME, "删除缓存文件：" + file.getPath());
+                        long currentFileLength = file.length();
+                        if(file.delete()){
+                            totalAvailableSize += currentFileLength;
+                            if(totalAvailableSize-reserveSize > cacheFileLength){
                                 return true;
                             }
-                        }else{
-                            return true;
                         }
                     }
+                } finally {
+                    ProcessLockFile.release(indexLock);
                 }
             }
         }
@@ -172,14 +265,279 @@ public class LruDiskCache implements DiskCache {
 
 	@Override
 	public synchronized File createCacheFile(DownloadRequest request) {
-		return getCacheFileByUri(request.getUri());
+		return getCacheFileByUri(request.getCacheKey());
 	}
 
+    @Override
+    public synchronized void pin(String uri) {
+        File cacheFile = getCacheFileByUri(uri);
+        if(cacheFile == null){
+            return;
+        }
+        synchronized (indexLockMonitor){
+            FileLock indexLock = lockIndex(getProcessLockFile());
+            try {
+                // 多进程共享时先重新读取，以免覆盖掉其它进程的修改
+                if(indexLock != null){
+                    pinnedFileNames = null;
+                }
+                if(getPinnedFileNames().add(cacheFile.getName())){
+                    savePinnedFileNames();
+                }
+            } finally {
+                ProcessLockFile.release(indexLock);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void unpin(String uri) {
+        File cacheFile = getCacheFileByUri(uri);
+        if(cacheFile == null){
+            return;
+        }
+        synchronized (indexLockMonitor){
+            FileLock indexLock = lockIndex(getProcessLockFile());
+            try {
+                if(indexLock != null){
+                    pinnedFileNames = null;
+                }
+                if(getPinnedFileNames().remove(cacheFile.getName())){
+                    savePinnedFileNames();
+                }
+            } finally {
+                ProcessLockFile.release(indexLock);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isPinned(String uri) {
+        File cacheFile = getCacheFileByUri(uri);
+        return cacheFile != null && getPinnedFileNames().contains(cacheFile.getName());
+    }
+
+    /**
+     * 获取被固定的缓存文件名称，第一次调用时从文件中读取，多进程共享时文件被其它进程修改了就重新读取
+     */
+    private Set<String> getPinnedFileNames(){
+        File cacheDir = getDiskCacheDir();
+        File pinnedFile = cacheDir != null ? new File(cacheDir, PINNED_FILE_NAME) : null;
+        if(pinnedFileNames != null && (!multiProcess || pinnedFile == null || pinnedFile.lastModified() == pinnedFileLastModified)){
+            return pinnedFileNames;
+        }
+
+        pinnedFileLastModified = pinnedFile != null ? pinnedFile.lastModified() : 0;
+        pinnedFileNames = readPinnedFileNames(cacheDir);
+        return pinnedFileNames;
+    }
+
+    /**
+     * 从文件中读取被固定的缓存文件名称
+     */
+    private static Set<String> readPinnedFileNames(File cacheDir){
+        Set<String> pinnedFileNames = new HashSet<String>();
+        File pinnedFile = cacheDir != null ? new File(cacheDir, PINNED_FILE_NAME) : null;
+        if(pinnedFile == null || !pinnedFile.exists()){
+            return pinnedFileNames;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(pinnedFile));
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.length() > 0){
+                    pinnedFileNames.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, LOG_NAME + "：" + "读取固定列表失败：" + e.getMessage() + "；" + pinnedFile.getPath());
+        } finally {
+            DownloadUtils.close(reader);
+        }
+        return pinnedFileNames;
+    }
+
+    /**
+     * 保存被固定的缓存文件名称
+     */
+    private void savePinnedFileNames(){
+        File cacheDir = getDiskCacheDir();
+        if(cacheDir == null){
+            return;
+        }
+
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(new File(cacheDir, PINNED_FILE_NAME), false));
+            for(String pinnedFileName : pinnedFileNames){
+                writer.write(pinnedFileName);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_NAME, "保存固定文件列表失败：" + e.getMessage());
+        } finally {
+            DownloadUtils.close(writer);
+        }
+        pinnedFileLastModified = new File(cacheDir, PINNED_FILE_NAME).lastModified();
+    }
+
+    @Override
+    public synchronized void prepare() {
+        File cacheDir = getDiskCacheDir();
+        if(cacheDir != null){
+            getPinnedFileNames();
+
+            // 上次清除缓存时还没删完的目录
+            File[] files = cacheDir.getParentFile() != null ? cacheDir.getParentFile().listFiles() : null;
+            if(files != null){
+                List<File> tombstones = new LinkedList<File>();
+                for(File file : files){
+                    if(file.getName().startsWith("." + cacheDir.getName() + TOMBSTONE_INFIX)){
+                        tombstones.add(file);
+                    }
+                }
+                deleteInBackground(tombstones);
+            }
+        }
+    }
+
+    @Override
+    public void trim() {
+        // 只在锁里取目录和固定列表，删除文件的过程不能阻塞下载
+        File cacheDir;
+        Set<String> pinnedFileNames;
+        ProcessLockFile lockFile;
+        synchronized (this){
+            cacheDir = getDiskCacheDir();
+            if(cacheDir == null){
+                return;
+            }
+            pinnedFileNames = new HashSet<String>(getPinnedFileNames());
+            lockFile = getProcessLockFile();
+        }
+
+        // 多进程共享时同时只有一个进程在整理，固定列表要在锁里重新读取
+        synchronized (indexLockMonitor){
+            FileLock indexLock = lockIndex(lockFile);
+            try {
+                if(indexLock != null){
+                    pinnedFileNames = readPinnedFileNames(cacheDir);
+                }
+                trim(cacheDir, pinnedFileNames);
+            } finally {
+                ProcessLockFile.release(indexLock);
+            }
+        }
+    }
+
+    private void trim(File cacheDir, Set<String> pinnedFileNames){
+        File[] files = cacheDir.listFiles();
+        if(files == null){
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        List<File> cacheFiles = new LinkedList<File>();
+        long usedSize = 0;
+        int tempCount = 0;
+        int expiredCount = 0;
+        for(File file : files){
+            if(file.getName().startsWith(".") || !file.isFile()){
+                continue;
+            }
+
+            // 残留的临时文件
+            if(file.getName().endsWith(TEMP_FILE_SUFFIX)){
+                if(currentTime - file.lastModified() > TEMP_FILE_EXPIRED_TIME && file.delete()){
+                    tempCount++;
+                }
+                continue;
+            }
+
+            boolean pinned = pinnedFileNames.contains(file.getName());
+            if(!pinned && maxAge > 0 && currentTime - file.lastModified() > maxAge && file.delete()){
+                expiredCount++;
+                continue;
+            }
+
+            usedSize += file.length();
+            cacheFiles.add(file);
+        }
+
+        // 按照活跃度删除，直到容量和数量都满足要求，被固定的文件不删除
+        int count = cacheFiles.size();
+        int evictedCount = 0;
+        if((maxsize > 0 && usedSize > maxsize) || (maxCount > 0 && count > maxCount)){
+            File[] sortedFiles = cacheFiles.toArray(new File[cacheFiles.size()]);
+            Arrays.sort(sortedFiles, fileLastModifiedComparator);
+            for(File file : sortedFiles){
+                if((maxsize <= 0 || usedSize <= maxsize) && (maxCount <= 0 || count <= maxCount)){
+                    break;
+                }
+                if(pinnedFileNames.contains(file.getName())){
+                    continue;
+                }
+                long fileLength = file.length();
+                if(file.delete()){
+                    usedSize -= fileLength;
+                    count--;
+                    evictedCount++;
+                }
+            }
+        }
+
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, LOG_NAME + "：" + "整理完成" + "；" + "临时文件" + "=" + tempCount + "；" + "过期" + "=" + expiredCount + "；" + "淘汰" + "=" + evictedCount + "；" + "数量" + "=" + count + "；" + "大小" + "=" + usedSize);
+        }
+    }
+
     @Override
     public synchronized void clear() {
-        deleteFile(diskCacheDir);
-        deleteFile(new File(context.getCacheDir(), DEFAULT_DIRECTORY_NAME));
-        deleteFile(new File(context.getExternalCacheDir(), DEFAULT_DIRECTORY_NAME));
+        pinnedFileNames = null;
+        closeProcessLockFile();
+
+        // 先把目录重命名，马上就能得到一个空的缓存，再在后台慢慢删除
+        List<File> tombstones = new LinkedList<File>();
+        File[] cacheDirs = new File[]{diskCacheDir, new File(context.getCacheDir(), DEFAULT_DIRECTORY_NAME), context.getExternalCacheDir() != null ? new File(context.getExternalCacheDir(), DEFAULT_DIRECTORY_NAME) : null};
+        for(File cacheDir : cacheDirs){
+            if(cacheDir == null || !cacheDir.exists() || cacheDir.getParentFile() == null){
+                continue;
+            }
+            File tombstone = new File(cacheDir.getParentFile(), "." + cacheDir.getName() + TOMBSTONE_INFIX + System.currentTimeMillis());
+            if(cacheDir.renameTo(tombstone)){
+                tombstones.add(tombstone);
+            }else if(!deleteFile(cacheDir)){
+                Log.w(LOG_NAME, "删除缓存目录失败：" + cacheDir.getPath());
+            }
+        }
+        deleteInBackground(tombstones);
+    }
+
+    /**
+     * 在后台线程中删除被清除的缓存目录
+     */
+    private synchronized void deleteInBackground(final List<File> tombstones){
+        if(tombstones.isEmpty()){
+            return;
+        }
+        if(tombstoneExecutor == null){
+            tombstoneExecutor = Executors.newSingleThreadExecutor();
+        }
+        tombstoneExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                for(File tombstone : tombstones){
+                    if(!deleteFile(tombstone)){
+                        Log.w(LOG_NAME, "删除被清除的缓存目录失败：" + tombstone.getPath());
+                    }else if(Spear.isDebugMode()){
+                        Log.d(Spear.TAG, LOG_NAME + "：" + "删除被清除的缓存目录完成：" + tombstone.getPath());
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.os.SystemClock;
+
+import me.xiaopan.android.spear.util.LruCache;
+
+/**
+ * 使用Lru算法来记录下载失败的URI，记录数量有上限，每条记录都有有效期
+ */
+public class LruFailedUriCache implements FailedUriCache {
+    private static final int DEFAULT_MAX_COUNT = 100;   // 默认最多记录100个URI
+    private static final long DEFAULT_EXPIRE_TIME = 5 * 60 * 1000;  // 默认有效期5分钟
+    private LruCache<String, Long> failedTimeLruCache;  // 记录每个URI失败的时间
+    private long expireTime = DEFAULT_EXPIRE_TIME;
+
+    public LruFailedUriCache(int maxCount) {
+        this.failedTimeLruCache = new LruCache<String, Long>(maxCount);
+    }
+
+    public LruFailedUriCache() {
+        this(DEFAULT_MAX_COUNT);
+    }
+
+    @Override
+    public synchronized void put(String uri) {
+        if(uri == null){
+            return;
+        }
+        failedTimeLruCache.put(uri, SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    public synchronized boolean isFailed(String uri) {
+        if(uri == null){
+            return false;
+        }
+        Long failedTime = failedTimeLruCache.get(uri);
+        if(failedTime == null){
+            return false;
+        }
+        if(SystemClock.elapsedRealtime() - failedTime > expireTime){
+            failedTimeLruCache.remove(uri);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(String uri) {
+        if(uri != null){
+            failedTimeLruCache.remove(uri);
+        }
+    }
+
+    @Override
+    public synchronized void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    @Override
+    public synchronized void clear() {
+        failedTimeLruCache.evictAll();
+    }
+}
@@ -20,6 +20,15 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import me.xiaopan.android.spear.util.LruCache;
 import me.xiaopan.android.spear.util.RecyclingBitmapDrawable;
 
@@ -27,7 +36,12 @@ import me.xiaopan.android.spear.util.RecyclingBitmapDrawable;
  * 使用Lru算法来缓存位图
  */
 public class LruMemoryCache implements MemoryCache {
+    private static final int MAX_VARIANT_COUNT = 512;   // 最多登记多少张图片的不同尺寸
 	private LruCache<String, BitmapDrawable> bitmapLruCache;
+    private Map<String, List<VariantReference>> variantsMap = new HashMap<String, List<VariantReference>>();  // 同一张图片的不同尺寸，只保留弱引用，查找时不会打乱Lru的顺序
+    private Map<String, ActiveReference> activeMap = new HashMap<String, ActiveReference>();   // 正在显示的位图
+    private Map<BitmapDrawable, ActiveReference> activeDrawableMap = new WeakHashMap<BitmapDrawable, ActiveReference>();  // 按位图查找显示计数
+    private ReferenceQueue<BitmapDrawable> activeReferenceQueue = new ReferenceQueue<BitmapDrawable>();
 
     public LruMemoryCache(LruCache<String, BitmapDrawable> bitmapLruCache) {
         this.bitmapLruCache = bitmapLruCache;
@@ -48,19 +62,196 @@ public class LruMemoryCache implements MemoryCache {
 
 	@Override
 	public synchronized BitmapDrawable get(String key) {
+        // 正在显示的直接返回，不去动Lru的顺序，也不重新计入容量
+        BitmapDrawable activeDrawable = getActive(key);
+        if(activeDrawable != null){
+            return activeDrawable;
+        }
 		return bitmapLruCache.get(key);
 	}
 
 	@Override
 	public synchronized BitmapDrawable remove(String key) {
-		return bitmapLruCache.remove(key);
+        ActiveReference activeReference = activeMap.remove(key);
+        if(activeReference != null && activeReference.get() != null){
+            activeDrawableMap.remove(activeReference.get());
+        }
+        BitmapDrawable bitmapDrawable = bitmapLruCache.remove(key);
+		return bitmapDrawable != null ? bitmapDrawable : (activeReference != null ? activeReference.get() : null);
 	}
 
 	@Override
 	public synchronized void clear() {
 		bitmapLruCache.evictAll();
+        variantsMap.clear();
+        activeMap.clear();
+        activeDrawableMap.clear();
 	}
 
+    @Override
+    public synchronized void putActive(String key, BitmapDrawable bitmapDrawable) {
+        cleanActive();
+        ActiveReference activeReference = activeMap.get(key);
+        if(activeReference == null || activeReference.get() != bitmapDrawable){
+            activeReference = new ActiveReference(key, bitmapDrawable, activeReferenceQueue);
+            activeMap.put(key, activeReference);
+            activeDrawableMap.put(bitmapDrawable, activeReference);
+        }
+    }
+
+    @Override
+    public synchronized void retainActive(BitmapDrawable bitmapDrawable) {
+        ActiveReference activeReference = activeDrawableMap.get(bitmapDrawable);
+        if(activeReference != null){
+            activeReference.displayCount++;
+        }
+    }
+
+    @Override
+    public synchronized void releaseActive(BitmapDrawable bitmapDrawable) {
+        ActiveReference activeReference = activeDrawableMap.get(bitmapDrawable);
+        if(activeReference == null || --activeReference.displayCount > 0){
+            return;
+        }
+
+        // 没有地方在显示了，从正在显示的位图中删除，还没有被挤出去的话就不用再放回去了
+        activeDrawableMap.remove(bitmapDrawable);
+        if(activeMap.get(activeReference.key) == activeReference){
+            activeMap.remove(activeReference.key);
+        }
+        Bitmap bitmap = bitmapDrawable.getBitmap();
+        if(bitmap == null || bitmap.isRecycled() || bitmapLruCache.get(activeReference.key) != null){
+            return;
+        }
+        if(bitmapDrawable instanceof RecyclingBitmapDrawable){
+            ((RecyclingBitmapDrawable) bitmapDrawable).setIsCached(true);
+        }
+        bitmapLruCache.put(activeReference.key, bitmapDrawable);
+    }
+
+    /**
+     * 获取正在显示的位图
+     * @return null：没有显示或已经被回收了
+     */
+    private BitmapDrawable getActive(String key){
+        cleanActive();
+        ActiveReference activeReference = activeMap.get(key);
+        if(activeReference == null){
+            return null;
+        }
+        BitmapDrawable bitmapDrawable = activeReference.get();
+        if(bitmapDrawable == null || bitmapDrawable.getBitmap() == null || bitmapDrawable.getBitmap().isRecycled()){
+            activeMap.remove(key);
+            if(bitmapDrawable != null){
+                activeDrawableMap.remove(bitmapDrawable);
+            }
+            return null;
+        }
+        return bitmapDrawable;
+    }
+
+    /**
+     * 清理没有通过releaseActive()释放就已经被回收了的位图，例如显示在普通ImageView上的
+     */
+    private void cleanActive(){
+        ActiveReference activeReference;
+        while((activeReference = (ActiveReference) activeReferenceQueue.poll()) != null){
+            if(activeMap.get(activeReference.key) == activeReference){
+                activeMap.remove(activeReference.key);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void putVariant(String variantKey, String key) {
+        BitmapDrawable bitmapDrawable = get(key);
+        if(bitmapDrawable == null){
+            return;
+        }
+
+        List<VariantReference> variants = variantsMap.get(variantKey);
+        if(variants == null){
+            // 索引只是用来加速的，太多了就清空重新登记
+            if(variantsMap.size() >= MAX_VARIANT_COUNT){
+                variantsMap.clear();
+            }
+            variants = new LinkedList<VariantReference>();
+            variantsMap.put(variantKey, variants);
+        }
+        Iterator<VariantReference> iterator = variants.iterator();
+        while(iterator.hasNext()){
+            if(iterator.next().key.equals(key)){
+                iterator.remove();
+            }
+        }
+        variants.add(new VariantReference(key, bitmapDrawable));
+    }
+
+    @Override
+    public synchronized BitmapDrawable findVariant(String variantKey, int minWidth, int minHeight) {
+        return findVariant(variantKey, minWidth, minHeight, false);
+    }
+
+    @Override
+    public synchronized BitmapDrawable findLargestVariant(String variantKey) {
+        return findVariant(variantKey, 0, 0, true);
+    }
+
+    /**
+     * 在登记过的解码结果中查找宽高都不小于指定尺寸的最小或最大的一个，通过弱引用查找，不会把没选中的尺寸也提到Lru的前面
+     * @param largest true：最大的；false：最小的
+     */
+    private BitmapDrawable findVariant(String variantKey, int minWidth, int minHeight, boolean largest) {
+        List<VariantReference> variants = variantsMap.get(variantKey);
+        if(variants == null){
+            return null;
+        }
+
+        BitmapDrawable result = null;
+        Iterator<VariantReference> iterator = variants.iterator();
+        while(iterator.hasNext()){
+            BitmapDrawable bitmapDrawable = iterator.next().get();
+            Bitmap bitmap = bitmapDrawable != null ? bitmapDrawable.getBitmap() : null;
+
+            // 已经被挤出去或回收了
+            if(bitmap == null || bitmap.isRecycled()){
+                iterator.remove();
+                continue;
+            }
+
+            if(bitmap.getWidth() >= minWidth && bitmap.getHeight() >= minHeight){
+                int area = bitmap.getWidth() * bitmap.getHeight();
+                int resultArea = result != null ? result.getBitmap().getWidth() * result.getBitmap().getHeight() : 0;
+                if(result == null || (largest ? area > resultArea : area < resultArea)){
+                    result = bitmapDrawable;
+                }
+            }
+        }
+        if(variants.isEmpty()){
+            variantsMap.remove(variantKey);
+        }
+        return result;
+    }
+
+    private static class ActiveReference extends WeakReference<BitmapDrawable> {
+        private String key;
+        private int displayCount;   // 有几个SpearImageView正在显示
+
+        public ActiveReference(String key, BitmapDrawable bitmapDrawable, ReferenceQueue<BitmapDrawable> referenceQueue) {
+            super(bitmapDrawable, referenceQueue);
+            this.key = key;
+        }
+    }
+
+    private static class VariantReference extends WeakReference<BitmapDrawable> {
+        private String key;
+
+        public VariantReference(String key, BitmapDrawable bitmapDrawable) {
+            super(bitmapDrawable);
+            this.key = key;
+        }
+    }
+
     private static class BitmapLruCache extends LruCache<String, BitmapDrawable> {
 
         public BitmapLruCache(int maxSize) {
@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.download.DownloadUtils;
+
+/**
+ * 基于内存映射的打包磁盘缓存器
+ * <br>图片数据依次追加到段文件（每个最大4M）中，内存中保存每张图片所在的段、偏移和长度，读取时通过MappedByteBuffer直接拷贝出来；
+ * <br>索引以日志的形式保存在index文件中，启动后第一次访问时读取；总大小超过上限时按LRU淘汰，段文件中有效数据不足一半时在后台整理
+ */
+public class MappedPackedDiskCache implements PackedDiskCache {
+    private static final String NAME = "MappedPackedDiskCache";
+    private static final String DEFAULT_DIRECTORY_NAME = "spear_pack";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String SEGMENT_FILE_PREFIX = "segment_";
+    private static final String ACTION_PUT = "P";
+    private static final String ACTION_REMOVE = "R";
+    private static final int DEFAULT_MAX_ENTRY_LENGTH = 16*1024;
+    private static final int DEFAULT_MAX_SEGMENT_LENGTH = 4*1024*1024;
+    private static final long DEFAULT_MAX_SIZE = 20*1024*1024;
+    private static final float COMPACT_THRESHOLD = 0.5f;   // 段文件中有效数据低于此比例时整理
+
+    private File directory;
+    private int maxEntryLength = DEFAULT_MAX_ENTRY_LENGTH;
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    private LinkedHashMap<String, Entry> entries;   // 按访问顺序排列，为null表示还没有读取索引
+    private Map<Integer, Segment> segments;
+    private Segment activeSegment;  // 当前写入的段
+    private int nextSegmentId;
+    private long size;  // 有效数据的总长度
+    private BufferedWriter indexWriter;
+    private int indexLineCount;
+    private ExecutorService compactExecutor;
+    private boolean compacting;
+
+    public MappedPackedDiskCache(Context context) {
+        this(new File(context.getCacheDir(), DEFAULT_DIRECTORY_NAME));
+    }
+
+    public MappedPackedDiskCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 设置单个图片的最大长度
+     * @param maxEntryLength 最大长度，单位字节，默认16K
+     */
+    public void setMaxEntryLength(int maxEntryLength) {
+        if(maxEntryLength > 0){
+            this.maxEntryLength = Math.min(maxEntryLength, DEFAULT_MAX_SEGMENT_LENGTH);
+        }
+    }
+
+    /**
+     * 设置最大容量
+     * @param maxSize 最大容量，单位字节，默认20M
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if(maxSize > 0){
+            this.maxSize = maxSize;
+        }
+    }
+
+    @Override
+    public int getMaxEntryLength() {
+        return maxEntryLength;
+    }
+
+    @Override
+    public boolean put(String uri, File file) {
+        long length = file.length();
+        if(length <= 0 || length > maxEntryLength){
+            return false;
+        }
+
+        // 先在锁外把文件读出来
+        byte[] data = new byte[(int) length];
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            int readLength = 0;
+            int readNumber;
+            while(readLength < data.length && (readNumber = inputStream.read(data, readLength, data.length - readLength)) != -1){
+                readLength += readNumber;
+            }
+            if(readLength != data.length){
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "读取缓存文件失败：" + e.getMessage() + "；" + file.getPath());
+            return false;
+        } finally {
+            DownloadUtils.close(inputStream);
+        }
+
+        synchronized (this){
+            if(!load()){
+                return false;
+            }
+            String key = createKey(uri);
+            try {
+                Entry entry = write(data, 0, data.length);
+                Entry oldEntry = entries.put(key, entry);
+                if(oldEntry != null){
+                    markDead(oldEntry);
+                }
+                writeIndex(ACTION_PUT, key, entry);
+            } catch (IOException e) {
+                Log.w(Spear.TAG, NAME + "：" + "写入段文件失败：" + e.getMessage() + "；" + uri);
+                return false;
+            }
+            trimToSize();
+            scheduleCompact();
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(String uri) {
+        if(!load()){
+            return null;
+        }
+        String key = createKey(uri);
+        Entry entry = entries.get(key);
+        if(entry == null){
+            return null;
+        }
+        try {
+            return read(entry);
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "读取段文件失败：" + e.getMessage() + "；" + uri);
+            entries.remove(key);
+            markDead(entry);
+            writeIndex(ACTION_REMOVE, key, null);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String uri) {
+        return load() && entries.containsKey(createKey(uri));
+    }
+
+    @Override
+    public synchronized void remove(String uri) {
+        if(!load()){
+            return;
+        }
+        String key = createKey(uri);
+        Entry entry = entries.remove(key);
+        if(entry != null){
+            markDead(entry);
+            writeIndex(ACTION_REMOVE, key, null);
+        }
+    }
+
+    @Override
+    public synchronized void prepare() {
+        load();
+    }
+
+    @Override
+    public synchronized void clear() {
+        closeAll();
+        LruDiskCache.deleteFile(directory);
+        entries = null;
+    }
+
+    /**
+     * 读取索引，只在第一次访问时读取
+     * @return false：目录不可用
+     */
+    private boolean load(){
+        if(entries != null){
+            return true;
+        }
+        if(!directory.exists() && !directory.mkdirs()){
+            Log.e(Spear.TAG, NAME + "：" + "创建目录失败：" + directory.getPath());
+            return false;
+        }
+
+        entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+        segments = new HashMap<Integer, Segment>();
+        activeSegment = null;
+        nextSegmentId = 0;
+        size = 0;
+
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                if(!file.getName().startsWith(SEGMENT_FILE_PREFIX)){
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(file.getName().substring(SEGMENT_FILE_PREFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                    nextSegmentId = Math.max(nextSegmentId, id + 1);
+                } catch (NumberFormatException e) {
+                    if(!file.delete()){
+                        Log.w(Spear.TAG, NAME + "：" + "删除无效文件失败：" + file.getPath());
+                    }
+                } catch (IOException e) {
+                    Log.w(Spear.TAG, NAME + "：" + "打开段文件失败：" + e.getMessage() + "；" + file.getPath());
+                }
+            }
+        }
+
+        // 重放索引日志
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if(indexFile.exists()){
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(indexFile));
+                String line;
+                while((line = reader.readLine()) != null){
+                    String[] items = line.split(" ");
+                    if(items.length == 2 && ACTION_REMOVE.equals(items[0])){
+                        Entry entry = entries.remove(items[1]);
+                        if(entry != null){
+                            markDead(entry);
+                        }
+                    }else if(items.length == 5 && ACTION_PUT.equals(items[0])){
+                        Entry entry;
+                        try {
+                            entry = new Entry(Integer.parseInt(items[2]), Long.parseLong(items[3]), Integer.parseInt(items[4]));
+                        } catch (NumberFormatException e) {
+                            continue;
+                        }
+                        Segment segment = segments.get(entry.segmentId);
+                        if(segment == null || entry.offset + entry.length > segment.length){
+                            continue;
+                        }
+                        Entry oldEntry = entries.put(items[1], entry);
+                        if(oldEntry != null){
+                            markDead(oldEntry);
+                        }
+                        segment.liveLength += entry.length;
+                        size += entry.length;
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(Spear.TAG, NAME + "：" + "读取索引失败：" + e.getMessage());
+            } finally {
+                DownloadUtils.close(reader);
+            }
+        }
+
+        // 删掉没有有效数据的段，最后一个没写满的段继续用来写入
+        Iterator<Segment> iterator = segments.values().iterator();
+        while(iterator.hasNext()){
+            Segment segment = iterator.next();
+            if(segment.liveLength <= 0){
+                segment.close();
+                if(!segment.file.delete()){
+                    Log.w(Spear.TAG, NAME + "：" + "删除段文件失败：" + segment.file.getPath());
+                }
+                iterator.remove();
+            }else if(segment.length < DEFAULT_MAX_SEGMENT_LENGTH && (activeSegment == null || segment.id > activeSegment.id)){
+                activeSegment = segment;
+            }
+        }
+
+        rewriteIndex();
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "读取索引完成" + "；" + "数量" + "=" + entries.size() + "；" + "段数" + "=" + segments.size() + "；" + "大小" + "=" + size);
+        }
+        return true;
+    }
+
+    /**
+     * 追加数据到当前的段，写满了就新建一个段
+     */
+    private Entry write(byte[] data, int offset, int length) throws IOException {
+        if(activeSegment == null || activeSegment.length + length > DEFAULT_MAX_SEGMENT_LENGTH){
+            int id = nextSegmentId++;
+            activeSegment = new Segment(id, new File(directory, SEGMENT_FILE_PREFIX + id));
+            segments.put(id, activeSegment);
+        }
+        Segment segment = activeSegment;
+        long position = segment.length;
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data, offset, length);
+        while(byteBuffer.hasRemaining()){
+            segment.channel.write(byteBuffer, position + byteBuffer.position() - offset);
+        }
+        segment.length += length;
+        segment.liveLength += length;
+        size += length;
+        return new Entry(segment.id, position, length);
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        Segment segment = segments.get(entry.segmentId);
+        if(segment == null){
+            throw new IOException("segment " + entry.segmentId + " not found");
+        }
+        byte[] data = new byte[entry.length];
+
+        // 已经映射到的直接从内存映射读，还在追加的段每次追加后都重新映射太浪费，直接按位置读
+        MappedByteBuffer mappedBuffer = segment.buffer;
+        if(mappedBuffer == null || mappedBuffer.capacity() < entry.offset + entry.length){
+            if(segment == activeSegment){
+                ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+                while(byteBuffer.hasRemaining()){
+                    if(segment.channel.read(byteBuffer, entry.offset + byteBuffer.position()) < 0){
+                        throw new IOException("unexpected end of segment " + segment.id);
+                    }
+                }
+                return data;
+            }
+            mappedBuffer = segment.map(entry.offset + entry.length);
+        }
+
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        buffer.position((int) entry.offset);
+        buffer.get(data);
+        return data;
+    }
+
+    private void markDead(Entry entry){
+        Segment segment = segments.get(entry.segmentId);
+        if(segment != null){
+            segment.liveLength -= entry.length;
+        }
+        size -= entry.length;
+    }
+
+    /**
+     * 超过最大容量时按LRU淘汰，只是从索引中删除，数据在整理段文件时才真正删除
+     */
+    private void trimToSize(){
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(size > maxSize && iterator.hasNext()){
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            markDead(eldest.getValue());
+            writeIndex(ACTION_REMOVE, eldest.getKey(), null);
+        }
+    }
+
+    /**
+     * 有段文件中的有效数据不足一半时在后台整理
+     */
+    private void scheduleCompact(){
+        if(compacting || findSparseSegment() == null){
+            return;
+        }
+        compacting = true;
+        if(compactExecutor == null){
+            compactExecutor = Executors.newSingleThreadExecutor();
+        }
+        compactExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    private Segment findSparseSegment(){
+        for(Segment segment : segments.values()){
+            if(segment != activeSegment && segment.liveLength < segment.length * COMPACT_THRESHOLD){
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 整理段文件，把有效数据拷贝到当前的段，然后删除旧的段，每次只锁住一个段的整理过程
+     */
+    private void compact(){
+        while(true){
+            synchronized (this){
+                Segment segment = entries != null ? findSparseSegment() : null;
+                if(segment == null){
+                    compacting = false;
+                    return;
+                }
+
+                try {
+                    // 直接修改Entry的位置，不改变LRU顺序
+                    for(Entry entry : entries.values()){
+                        if(entry.segmentId == segment.id){
+                            byte[] data = read(entry);
+                            segment.liveLength -= entry.length;
+                            size -= entry.length;
+                            Entry newEntry = write(data, 0, data.length);
+                            entry.segmentId = newEntry.segmentId;
+                            entry.offset = newEntry.offset;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(Spear.TAG, NAME + "：" + "整理段文件失败：" + e.getMessage());
+                    compacting = false;
+                    return;
+                }
+
+                // 先保存新的索引再删除旧的段
+                rewriteIndex();
+                segments.remove(segment.id);
+                segment.close();
+                if(!segment.file.delete()){
+                    Log.w(Spear.TAG, NAME + "：" + "删除段文件失败：" + segment.file.getPath());
+                }
+                if(Spear.isDebugMode()){
+                    Log.d(Spear.TAG, NAME + "：" + "整理段文件完成：" + segment.file.getName() + "；" + "大小" + "=" + size);
+                }
+            }
+        }
+    }
+
+    private void writeIndex(String action, String key, Entry entry){
+        try {
+            if(indexWriter == null){
+                indexWriter = new BufferedWriter(new FileWriter(new File(directory, INDEX_FILE_NAME), true));
+            }
+            indexWriter.write(action);
+            indexWriter.write(' ');
+            indexWriter.write(key);
+            if(entry != null){
+                indexWriter.write(' ');
+                indexWriter.write(entry.segmentId + " " + entry.offset + " " + entry.length);
+            }
+            indexWriter.newLine();
+            indexWriter.flush();
+            indexLineCount++;
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "写入索引失败：" + e.getMessage());
+        }
+
+        // 日志中无效的记录太多了就重写一次
+        if(indexLineCount > entries.size() * 2 + 100){
+            rewriteIndex();
+        }
+    }
+
+    /**
+     * 按LRU顺序重写索引，先写临时文件再重命名
+     */
+    private void rewriteIndex(){
+        DownloadUtils.close(indexWriter);
+        indexWriter = null;
+
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        File tempIndexFile = new File(directory, INDEX_FILE_NAME + ".temp");
+        BufferedWriter writer = null;
+        boolean success = false;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempIndexFile, false));
+            for(Map.Entry<String, Entry> mapEntry : entries.entrySet()){
+                Entry entry = mapEntry.getValue();
+                writer.write(ACTION_PUT + " " + mapEntry.getKey() + " " + entry.segmentId + " " + entry.offset + " " + entry.length);
+                writer.newLine();
+            }
+            success = true;
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "重写索引失败：" + e.getMessage());
+        } finally {
+            DownloadUtils.close(writer);
+        }
+        if(success && tempIndexFile.renameTo(indexFile)){
+            indexLineCount = entries.size();
+        }
+    }
+
+    private void closeAll(){
+        DownloadUtils.close(indexWriter);
+        indexWriter = null;
+        if(segments != null){
+            for(Segment segment : segments.values()){
+                segment.close();
+            }
+            segments = null;
+        }
+        activeSegment = null;
+    }
+
+    private static String createKey(String uri){
+        try {
+            return URLEncoder.encode(uri, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+            return uri;
+        }
+    }
+
+    private static class Entry {
+        private int segmentId;
+        private long offset;
+        private int length;
+
+        private Entry(int segmentId, long offset, int length) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        private int id;
+        private File file;
+        private RandomAccessFile randomAccessFile;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private long length;
+        private long liveLength;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.channel = randomAccessFile.getChannel();
+            this.length = channel.size();
+        }
+
+        /**
+         * 获取内存映射，当前映射的范围不够时重新映射
+         */
+        private MappedByteBuffer map(long requiredLength) throws IOException {
+            if(buffer == null || buffer.capacity() < requiredLength){
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            return buffer;
+        }
+
+        private void close(){
+            buffer = null;
+            DownloadUtils.close(randomAccessFile);
+        }
+    }
+}
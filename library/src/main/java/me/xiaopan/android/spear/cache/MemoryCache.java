@@ -30,7 +30,7 @@ public interface MemoryCache {
 	public void put(String key, BitmapDrawable bitmapDrawable);
 	
 	/**
-	 * 根据给定的key获取位图
+	 * 根据给定的key获取位图，先找正在显示的再找缓存的
 	 * @param key 键
 	 */
 	public BitmapDrawable get(String key);
@@ -45,4 +45,46 @@ public interface MemoryCache {
 	 * 清除内存缓存
 	 */
 	public void clear();
+
+	/**
+	 * 登记一个将要显示的位图，只保留弱引用，不占缓存容量，被挤出去之后只要还在显示就还能get到，要在显示之前登记
+	 * @param key 键
+	 * @param bitmapDrawable 值
+	 */
+	public void putActive(String key, BitmapDrawable bitmapDrawable);
+
+	/**
+	 * 登记过的位图被显示了一次，显示计数加一，由SpearImageView在设置图片时调用
+	 * @param bitmapDrawable 正在显示的位图，没有登记过的忽略
+	 */
+	public void retainActive(BitmapDrawable bitmapDrawable);
+
+	/**
+	 * 登记过的位图不再显示了一次，显示计数减到0时不再算作正在显示，放回到缓存中
+	 * @param bitmapDrawable 不再显示的位图，没有登记过的忽略
+	 */
+	public void releaseActive(BitmapDrawable bitmapDrawable);
+
+	/**
+	 * 登记一个没有经过处理的解码结果，同一张图片再请求更小的尺寸时可以直接拿来缩小
+	 * @param variantKey 同一张图片的不同尺寸共用的KEY
+	 * @param key 键，对应的位图要已经放进来了
+	 */
+	public void putVariant(String variantKey, String key);
+
+	/**
+	 * 在登记过的解码结果中查找宽高都不小于指定尺寸的最小的一个
+	 * @param variantKey 同一张图片的不同尺寸共用的KEY
+	 * @param minWidth 最小宽度
+	 * @param minHeight 最小高度
+	 * @return null：没有
+	 */
+	public BitmapDrawable findVariant(String variantKey, int minWidth, int minHeight);
+
+	/**
+	 * 在登记过的解码结果中查找最大的一个
+	 * @param variantKey 同一张图片的不同尺寸共用的KEY
+	 * @return null：没有
+	 */
+	public BitmapDrawable findLargestVariant(String variantKey);
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import java.io.File;
+
+/**
+ * 打包的磁盘缓存器，把很小的图片（例如头像、图标）追加到几个大的段文件中，通过内存中的索引定位，省去每张图片单独打开、关闭文件的开销
+ */
+public interface PackedDiskCache {
+    /**
+     * 把缓存文件的内容放进来
+     * @param uri 图片URI
+     * @param file 缓存文件，长度超过getMaxEntryLength()的不会放进来
+     * @return true：已放进来，可以删除原文件了
+     */
+    public boolean put(String uri, File file);
+
+    /**
+     * 读取数据
+     * @param uri 图片URI
+     * @return null：没有
+     */
+    public byte[] get(String uri);
+
+    /**
+     * 是否包含
+     * @param uri 图片URI
+     */
+    public boolean contains(String uri);
+
+    /**
+     * 删除
+     * @param uri 图片URI
+     */
+    public void remove(String uri);
+
+    /**
+     * 获取单个图片的最大长度，超过此长度的图片不放进来
+     * @return 最大长度，单位字节
+     */
+    public int getMaxEntryLength();
+
+    /**
+     * 读取索引，比较耗时，要在后台线程中执行，不调用的话会在第一次使用时读取
+     */
+    public void prepare();
+
+    /**
+     * 清除所有数据
+     */
+    public void clear();
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * 跨进程的锁文件，用文件中不同的位置表示不同的锁，每个位置只锁一个字节
+ * <br>在有些系统上关闭文件的任何一个通道都会释放本进程在这个文件上的所有锁，所以每个进程只打开一个通道并且一直不关闭；
+ * <br>同一个进程内的线程之间不能用它互斥，同一个位置已经被本进程锁住时tryLock()返回null，lock()会抛出OverlappingFileLockException
+ */
+public class ProcessLockFile {
+    private File file;
+    private FileChannel channel;
+
+    public ProcessLockFile(File file) {
+        this.file = file;
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if(channel == null){
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * 尝试获取锁，不会等待
+     * @param position 位置
+     * @return 锁，用完之后调用release()释放；null：已经被其它进程或者本进程的其它线程锁住了
+     * @throws IOException 打开锁文件失败
+     */
+    public FileLock tryLock(long position) throws IOException {
+        try {
+            return getChannel().tryLock(position, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取锁，会一直等到其它进程释放为止
+     * @param position 位置
+     * @return 锁，用完之后调用release()释放
+     * @throws IOException 打开锁文件失败
+     */
+    public FileLock lock(long position) throws IOException {
+        return getChannel().lock(position, 1, false);
+    }
+
+    /**
+     * 关闭通道，本进程在这个文件上的所有锁都会被释放，之后再调用tryLock()或lock()会重新打开
+     */
+    public synchronized void close(){
+        if(channel == null){
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 关闭失败也没有办法，忽略
+        }
+        channel = null;
+    }
+
+    /**
+     * 释放锁
+     * @param lock 锁，可以为null
+     */
+    public static void release(FileLock lock){
+        if(lock == null || !lock.isValid()){
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // 通道已经关闭了，锁也就没了
+        }
+    }
+}
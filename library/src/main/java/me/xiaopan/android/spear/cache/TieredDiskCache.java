@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.cache;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.download.DownloadUtils;
+import me.xiaopan.android.spear.request.DownloadRequest;
+import me.xiaopan.android.spear.util.FileLastModifiedComparator;
+
+/**
+ * 分层磁盘缓存器，小的、常用的缓存文件放在速度快的机身存储中，大的、不常用的放在外部存储（SD卡）中，两层的容量分别限制
+ * <br>新的缓存文件都先写到机身存储，整理（trim()）时把超过maxInternalEntryLength的和超出机身存储容量的文件按活跃度移到外部存储；
+ * <br>外部存储中的小文件被多个请求访问后会在后台复制回机身存储，原文件等最近没用过了再删除；外部存储不可用时就只使用机身存储
+ */
+public class TieredDiskCache implements DiskCache {
+    private static final String NAME = "TieredDiskCache";
+    private static final String DEFAULT_DIRECTORY_NAME = "spear";
+    private static final int DEFAULT_INTERNAL_MAXSIZE = 20 * 1024 * 1024;
+    private static final int DEFAULT_MAX_INTERNAL_ENTRY_LENGTH = 256 * 1024;
+    private static final int PROMOTE_HIT_COUNT = 2; // 外部存储中的文件被多少个请求访问后复制回机身存储
+    private static final int MAX_HIT_RECORD_COUNT = 1000;   // 最多记录多少个文件的访问次数
+    private static final long MOVE_MIN_IDLE_TIME = 60 * 1000;   // 最近这么长时间内用过的文件不移动，避免正在读取的时候被移走
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private Context context;
+    private LruDiskCache internalCache;
+    private LruDiskCache externalCache;
+    private File internalDir;
+    private File externalDir;
+    private boolean prepared;
+    private int reserveSize = -1;
+    private int internalMaxsize = DEFAULT_INTERNAL_MAXSIZE;
+    private int externalMaxsize = -1;
+    private int maxInternalEntryLength = DEFAULT_MAX_INTERNAL_ENTRY_LENGTH;
+    private int maxCount = -1;
+    private long maxAge = -1;
+    private boolean multiProcess;
+    private Map<String, Integer> hitCounts;    // 外部存储中的文件的访问次数
+    private Set<String> promotingFileNames;    // 正在移回机身存储的文件
+    private ExecutorService promoteExecutor;
+    private FileLastModifiedComparator fileLastModifiedComparator;
+
+    public TieredDiskCache(Context context) {
+        this.context = context;
+        this.hitCounts = new HashMap<String, Integer>();
+        this.promotingFileNames = new HashSet<String>();
+        this.fileLastModifiedComparator = new FileLastModifiedComparator();
+    }
+
+    /**
+     * 设置机身存储的最大容量，超出的部分在整理时按活跃度移到外部存储
+     * @param internalMaxsize 最大容量，默认20M
+     */
+    public synchronized void setInternalMaxsize(int internalMaxsize) {
+        if(internalMaxsize > 0){
+            this.internalMaxsize = internalMaxsize;
+        }
+    }
+
+    /**
+     * 设置机身存储中单个文件的最大长度，超过的在整理时移到外部存储，也不会从外部存储移回来
+     * @param maxInternalEntryLength 最大长度，默认256K
+     */
+    public synchronized void setMaxInternalEntryLength(int maxInternalEntryLength) {
+        if(maxInternalEntryLength > 0){
+            this.maxInternalEntryLength = maxInternalEntryLength;
+        }
+    }
+
+    /**
+     * 创建两层缓存，外部存储不可用时只有机身存储一层
+     */
+    private synchronized void prepareTiers(){
+        if(prepared){
+            return;
+        }
+        prepared = true;
+
+        internalDir = createTierDir(context.getCacheDir());
+        if(Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())){
+            externalDir = createTierDir(context.getExternalCacheDir());
+        }
+        if(internalDir == null){
+            internalDir = externalDir;
+            externalDir = null;
+        }
+        internalCache = internalDir != null ? new LruDiskCache(context, internalDir) : null;
+        externalCache = externalDir != null ? new LruDiskCache(context, externalDir) : null;
+        if(internalCache == null){
+            Log.e(Spear.TAG, NAME + "：" + "没有可用的缓存目录");
+            return;
+        }
+
+        // 有外部存储时机身存储不删除文件，超出的部分在trim()中移到外部存储
+        if(externalCache != null){
+            internalCache.setMaxsize(-1);
+            externalCache.setMaxsize(externalMaxsize);
+        }else{
+            internalCache.setMaxsize(internalMaxsize);
+        }
+        for(LruDiskCache tier : getTiers()){
+            if(reserveSize > 0){
+                tier.setReserveSize(reserveSize);
+            }
+            tier.setMaxCount(maxCount);
+            tier.setMaxAge(maxAge);
+            tier.setMultiProcess(multiProcess);
+        }
+    }
+
+    private File createTierDir(File parentDir){
+        if(parentDir == null){
+            return null;
+        }
+        File dir = new File(parentDir, DEFAULT_DIRECTORY_NAME);
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            Log.e(Spear.TAG, NAME + "：" + "创建缓存文件夹失败：" + dir.getPath());
+            return null;
+        }
+        return dir;
+    }
+
+    private List<LruDiskCache> getTiers(){
+        List<LruDiskCache> tiers = new LinkedList<LruDiskCache>();
+        if(internalCache != null){
+            tiers.add(internalCache);
+        }
+        if(externalCache != null){
+            tiers.add(externalCache);
+        }
+        return tiers;
+    }
+
+    @Override
+    public void setDiskCacheDir(File cacheDir) {
+        Log.w(Spear.TAG, NAME + "：" + "分层磁盘缓存器的目录是固定的，不支持设置缓存目录");
+    }
+
+    @Override
+    public File createCacheFile(DownloadRequest request) {
+        // 每个请求只在这里调用一次，所以只在这里统计访问次数
+        return getCacheFile(request.getCacheKey(), true);
+    }
+
+    @Override
+    public File getCacheFileByUri(String uri) {
+        return getCacheFile(uri, false);
+    }
+
+    /**
+     * 获取缓存文件，机身存储中有的话优先用机身存储中的
+     * @param countHit 是否统计外部存储中的文件的访问次数
+     */
+    private File getCacheFile(String uri, boolean countHit){
+        prepareTiers();
+        if(internalCache == null){
+            return null;
+        }
+
+        File internalFile = internalCache.getCacheFileByUri(uri);
+        if(externalCache == null || internalFile == null || internalFile.exists()){
+            return internalFile;
+        }
+
+        File externalFile = externalCache.getCacheFileByUri(uri);
+        if(externalFile == null || !externalFile.exists()){
+            // 新的缓存文件都写到机身存储
+            return internalFile;
+        }
+
+        if(countHit){
+            onExternalHit(externalFile, internalFile);
+        }
+        return externalFile;
+    }
+
+    /**
+     * 外部存储中的小文件被多次访问后就在后台复制回机身存储，原文件可能正在被读取，等trim()的时候确定不用了再删除
+     */
+    private synchronized void onExternalHit(final File externalFile, final File internalFile){
+        final String fileName = externalFile.getName();
+        if(promotingFileNames.contains(fileName) || externalFile.length() > maxInternalEntryLength){
+            return;
+        }
+
+        Integer hitCount = hitCounts.get(fileName);
+        hitCount = hitCount != null ? hitCount + 1 : 1;
+        if(hitCount < PROMOTE_HIT_COUNT){
+            if(hitCounts.size() >= MAX_HIT_RECORD_COUNT){
+                hitCounts.clear();
+            }
+            hitCounts.put(fileName, hitCount);
+            return;
+        }
+
+        hitCounts.remove(fileName);
+        promotingFileNames.add(fileName);
+        if(promoteExecutor == null){
+            promoteExecutor = Executors.newSingleThreadExecutor();
+        }
+        promoteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                if(internalCache.applyForSpace(externalFile.length()) && copyFile(externalFile, internalFile) && Spear.isDebugMode()){
+                    Log.d(Spear.TAG, NAME + "：" + "复制回机身存储：" + fileName);
+                }
+                synchronized (TieredDiskCache.this){
+                    promotingFileNames.remove(fileName);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean applyForSpace(long length) {
+        prepareTiers();
+        return internalCache != null && internalCache.applyForSpace(length);
+    }
+
+    @Override
+    public synchronized void setReserveSize(int reserveSize) {
+        this.reserveSize = reserveSize;
+        for(LruDiskCache tier : getTiers()){
+            tier.setReserveSize(reserveSize);
+        }
+    }
+
+    /**
+     * 设置外部存储的最大容量，没有外部存储时不起作用，机身存储的最大容量请通过setInternalMaxsize()设置
+     * @param maxsize 最大容量
+     */
+    @Override
+    public synchronized void setMaxsize(int maxsize) {
+        this.externalMaxsize = maxsize;
+        if(externalCache != null){
+            externalCache.setMaxsize(maxsize);
+        }
+    }
+
+    @Override
+    public synchronized void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+        for(LruDiskCache tier : getTiers()){
+            tier.setMaxCount(maxCount);
+        }
+    }
+
+    @Override
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+        for(LruDiskCache tier : getTiers()){
+            tier.setMaxAge(maxAge);
+        }
+    }
+
+    /**
+     * 设置是否支持多进程共享，两层都会设置，详见LruDiskCache.setMultiProcess()
+     * @param multiProcess 是否支持多进程共享，默认不支持
+     */
+    public synchronized void setMultiProcess(boolean multiProcess) {
+        this.multiProcess = multiProcess;
+        for(LruDiskCache tier : getTiers()){
+            tier.setMultiProcess(multiProcess);
+        }
+    }
+
+    @Override
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    @Override
+    public FileLock tryLockCacheFile(String cacheKey) throws IOException {
+        prepareTiers();
+        if(internalCache == null){
+            throw new IOException("disk cache dir unavailable");
+        }
+        return internalCache.tryLockCacheFile(cacheKey);
+    }
+
+    @Override
+    public void pin(String uri) {
+        prepareTiers();
+        for(LruDiskCache tier : getTiers()){
+            tier.pin(uri);
+        }
+    }
+
+    @Override
+    public void unpin(String uri) {
+        prepareTiers();
+        for(LruDiskCache tier : getTiers()){
+            tier.unpin(uri);
+        }
+    }
+
+    @Override
+    public boolean isPinned(String uri) {
+        prepareTiers();
+        return internalCache != null && internalCache.isPinned(uri);
+    }
+
+    @Override
+    public void prepare() {
+        prepareTiers();
+        for(LruDiskCache tier : getTiers()){
+            tier.prepare();
+        }
+    }
+
+    @Override
+    public void trim() {
+        prepareTiers();
+        if(internalCache != null && externalCache != null){
+            deletePromotedFiles();
+            demote();
+        }
+        for(LruDiskCache tier : getTiers()){
+            tier.trim();
+        }
+    }
+
+    /**
+     * 删除外部存储中已经复制回机身存储并且最近没用过的文件
+     */
+    private void deletePromotedFiles(){
+        File[] files = externalDir.listFiles();
+        if(files == null){
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        int deletedCount = 0;
+        for(File file : files){
+            if(file.getName().startsWith(".") || file.getName().endsWith(".temp") || !file.isFile()){
+                continue;
+            }
+            synchronized (this){
+                if(promotingFileNames.contains(file.getName())){
+                    continue;
+                }
+            }
+            if(currentTime - file.lastModified() > MOVE_MIN_IDLE_TIME && new File(internalDir, file.getName()).exists() && file.delete()){
+                deletedCount++;
+            }
+        }
+
+        if(Spear.isDebugMode() && deletedCount > 0){
+            Log.d(Spear.TAG, NAME + "：" + "删除已复制回机身存储的文件" + "=" + deletedCount);
+        }
+    }
+
+    /**
+     * 把机身存储中的大文件和超出容量的文件按活跃度移到外部存储
+     */
+    private void demote(){
+        File[] files = internalDir.listFiles();
+        if(files == null){
+            return;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        List<File> cacheFiles = new LinkedList<File>();
+        long usedSize = 0;
+        int movedCount = 0;
+        for(File file : files){
+            if(file.getName().startsWith(".") || file.getName().endsWith(".temp") || !file.isFile()){
+                continue;
+            }
+            long fileLength = file.length();
+            if(fileLength > maxInternalEntryLength && currentTime - file.lastModified() > MOVE_MIN_IDLE_TIME){
+                if(externalCache.applyForSpace(fileLength) && moveFile(file, new File(externalDir, file.getName()))){
+                    movedCount++;
+                }
+                continue;
+            }
+            usedSize += fileLength;
+            cacheFiles.add(file);
+        }
+
+        if(usedSize > internalMaxsize){
+            File[] sortedFiles = cacheFiles.toArray(new File[cacheFiles.size()]);
+            Arrays.sort(sortedFiles, fileLastModifiedComparator);
+            for(File file : sortedFiles){
+                if(usedSize <= internalMaxsize || currentTime - file.lastModified() <= MOVE_MIN_IDLE_TIME){
+                    break;
+                }
+                long fileLength = file.length();
+                if(externalCache.applyForSpace(fileLength) && moveFile(file, new File(externalDir, file.getName()))){
+                    usedSize -= fileLength;
+                    movedCount++;
+                }
+            }
+        }
+
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "移到外部存储" + "=" + movedCount + "；" + "机身存储大小" + "=" + usedSize);
+        }
+    }
+
+    @Override
+    public void clear() {
+        prepareTiers();
+        for(LruDiskCache tier : getTiers()){
+            tier.clear();
+        }
+        synchronized (this){
+            hitCounts.clear();
+        }
+    }
+
+    /**
+     * 移动文件，先复制再删除原文件
+     * @return true：移动成功
+     */
+    private static boolean moveFile(File fromFile, File toFile){
+        if(!copyFile(fromFile, toFile)){
+            return false;
+        }
+        if(!fromFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除原文件失败：" + fromFile.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * 复制文件，两个目录不在同一个分区，所以先拷贝到临时文件再重命名，最后修改时间保持不变
+     * @return true：复制成功
+     */
+    private static boolean copyFile(File fromFile, File toFile){
+        File tempFile = new File(toFile.getPath() + ".temp");
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        boolean success = false;
+        try {
+            inputStream = new FileInputStream(fromFile);
+            outputStream = new FileOutputStream(tempFile, false);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int readLength;
+            while((readLength = inputStream.read(buffer)) != -1){
+                outputStream.write(buffer, 0, readLength);
+            }
+            success = true;
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "复制文件失败：" + e.getMessage() + "；" + fromFile.getPath());
+        } finally {
+            DownloadUtils.close(outputStream);
+            DownloadUtils.close(inputStream);
+        }
+
+        if(success){
+            long lastModified = fromFile.lastModified();
+            success = tempFile.renameTo(toFile);
+            if(success){
+                if(!toFile.setLastModified(lastModified)){
+                    Log.w(Spear.TAG, NAME + "：" + "设置最后修改时间失败：" + toFile.getPath());
+                }
+            }
+        }
+        if(!success && tempFile.exists() && !tempFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除临时文件失败：" + tempFile.getPath());
+        }
+        return success;
+    }
+}
@@ -35,6 +35,7 @@ import java.io.InputStream;
 
 import me.xiaopan.android.spear.Spear;
 import me.xiaopan.android.spear.request.LoadRequest;
+import me.xiaopan.android.spear.util.ImageFormat;
 import me.xiaopan.android.spear.util.ImageScheme;
 import me.xiaopan.android.spear.util.ImageSize;
 
@@ -62,8 +63,13 @@ public class DefaultImageDecoder implements ImageDecoder {
 
     public Bitmap decodeHttpOrHttps(LoadRequest loadRequest){
         if(loadRequest.getCacheFile() != null && loadRequest.getCacheFile().exists()){
+            // 下载时已经从Content-Type得到格式了就不再打开文件读文件头，直接读磁盘缓存的时候才需要
+            if(loadRequest.getImageFormat() == null){
+                loadRequest.setImageFormat(ImageFormat.valueOfFile(loadRequest.getCacheFile()));
+            }
             return decodeFromHelper(loadRequest, new CacheFileDecodeHelper(loadRequest.getCacheFile(), loadRequest));
         }else if(loadRequest.getImageData() != null && loadRequest.getImageData().length > 0){
+            loadRequest.setImageFormat(ImageFormat.valueOfData(loadRequest.getImageData()));
             return decodeFromHelper(loadRequest, new ByteArrayDecodeHelper(loadRequest.getImageData(), loadRequest));
         }else{
             return null;
@@ -97,6 +103,16 @@ public class DefaultImageDecoder implements ImageDecoder {
     }
 
     public static Bitmap decodeFromHelper(LoadRequest loadRequest, DecodeHelper decodeHelper){
+        // 当前系统不支持的格式就不用解码了，直接失败，缓存文件也会被删除，下次会按照新的Accept重新下载
+        ImageFormat imageFormat = loadRequest.getImageFormat();
+        if(imageFormat != null && !imageFormat.isDecodeSupported()){
+            if(Spear.isDebugMode()){
+                Log.w(Spear.TAG, "DefaultImageDecoder" + "：" + "当前系统不支持此格式：" + imageFormat.getMimeType() + "；" + loadRequest.getName());
+            }
+            decodeHelper.onDecodeFailure();
+            return null;
+        }
+
         ImageSize maxsize = loadRequest.getMaxsize();
         Bitmap bitmap = null;
         Point originalSize = null;
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import me.xiaopan.android.spear.Spear;
+
+/**
+ * AIMD（加性增、乘性减）并发数控制器
+ * <br>每完成“当前并发数”个下载算一轮，统计这一轮的总吞吐量和平均TTFB：
+ * <br>TTFB明显高于基准值或者下载超时说明网络拥塞，并发数减半；吞吐量比上一轮明显提高了并发数才加一，
+ * <br>加了之后吞吐量反而下降说明多出来的连接没用，再减回去
+ */
+public class AimdConcurrencyController implements ConcurrencyController {
+    private static final String NAME = "AimdConcurrencyController";
+    private static final int DEFAULT_INITIAL_CONCURRENCY = 5;
+    private static final int DEFAULT_MIN_CONCURRENCY = 1;
+    private static final int DEFAULT_MAX_CONCURRENCY = 8;
+    private static final float CONGESTION_FIRST_BYTE_TIME_RATIO = 2f;    // 平均TTFB超过基准值的倍数就认为拥塞了
+    private static final float THROUGHPUT_GAIN = 1.05f;   // 吞吐量超过上一轮的105%才认为有提高
+    private static final float THROUGHPUT_TOLERANCE = 0.95f;   // 吞吐量低于上一轮的95%就认为下降了
+    private static final float BASELINE_DRIFT_FACTOR = 0.05f;  // TTFB基准值向上漂移的系数，防止基准值一直停留在很早以前的最小值
+
+    private int minConcurrency = DEFAULT_MIN_CONCURRENCY;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int concurrency = DEFAULT_INITIAL_CONCURRENCY;
+
+    private int sampleCount;
+    private long windowLength;
+    private long windowFirstByteTime;
+    private long windowStartTime;
+    private float lastThroughput;   // 上一轮的总吞吐量，单位字节每秒
+    private float baselineFirstByteTime;    // TTFB基准值，单位毫秒
+    private boolean lastIncreased;  // 上一轮是否加了并发数
+
+    @Override
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    @Override
+    public synchronized void onDownloadCompleted(long length, long firstByteTime, long time) {
+        if(length <= 0 || time <= 0){
+            return;
+        }
+
+        // 这一轮的开始时间取最早开始的那个下载
+        long now = SystemClock.elapsedRealtime();
+        long startTime = now - time;
+        if(sampleCount == 0 || startTime < windowStartTime){
+            windowStartTime = startTime;
+        }
+        sampleCount++;
+        windowLength += length;
+        windowFirstByteTime += Math.max(firstByteTime, 0);
+        if(sampleCount < concurrency){
+            return;
+        }
+
+        float throughput = windowLength * 1000f / Math.max(now - windowStartTime, 1);
+        float averageFirstByteTime = (float) windowFirstByteTime / sampleCount;
+        if(baselineFirstByteTime <= 0 || averageFirstByteTime < baselineFirstByteTime){
+            baselineFirstByteTime = averageFirstByteTime;
+        }else{
+            baselineFirstByteTime += (averageFirstByteTime - baselineFirstByteTime) * BASELINE_DRIFT_FACTOR;
+        }
+
+        int newConcurrency = concurrency;
+        if(averageFirstByteTime > baselineFirstByteTime * CONGESTION_FIRST_BYTE_TIME_RATIO){
+            newConcurrency = Math.max(minConcurrency, concurrency / 2);
+        }else if(lastThroughput <= 0 || throughput >= lastThroughput * THROUGHPUT_GAIN){
+            newConcurrency = Math.min(maxConcurrency, concurrency + 1);
+        }else if(lastIncreased && throughput < lastThroughput * THROUGHPUT_TOLERANCE){
+            newConcurrency = Math.max(minConcurrency, concurrency - 1);
+        }
+        lastIncreased = newConcurrency > concurrency;
+        changeConcurrency(newConcurrency, throughput, averageFirstByteTime);
+
+        lastThroughput = throughput;
+        resetWindow();
+    }
+
+    @Override
+    public synchronized void onDownloadTimeout() {
+        lastIncreased = false;
+        changeConcurrency(Math.max(minConcurrency, concurrency / 2), lastThroughput, baselineFirstByteTime);
+        resetWindow();
+    }
+
+    @Override
+    public synchronized void setConcurrencyRange(int minConcurrency, int maxConcurrency) {
+        if(minConcurrency <= 0 || maxConcurrency < minConcurrency){
+            return;
+        }
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.concurrency = Math.max(minConcurrency, Math.min(maxConcurrency, concurrency));
+    }
+
+    private void changeConcurrency(int newConcurrency, float throughput, float averageFirstByteTime){
+        if(newConcurrency == concurrency){
+            return;
+        }
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "并发数" + "=" + concurrency + "->" + newConcurrency + "；" + "吞吐量" + "=" + (int) throughput + "B/s" + "；" + "平均TTFB" + "=" + (int) averageFirstByteTime + "ms" + "；" + "基准TTFB" + "=" + (int) baselineFirstByteTime + "ms");
+        }
+        concurrency = newConcurrency;
+    }
+
+    private void resetWindow(){
+        sampleCount = 0;
+        windowLength = 0;
+        windowFirstByteTime = 0;
+        windowStartTime = 0;
+    }
+}
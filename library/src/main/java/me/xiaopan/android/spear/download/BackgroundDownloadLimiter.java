@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import me.xiaopan.android.spear.execute.DiscardableTask;
+
+/**
+ * 限制后台和预取下载同时占用的网络线程数，超出的在这里排队，前台下载始终能拿到线程。
+ * 网络线程池要用NotifyDiscardOldestPolicy，这样线程池满了丢掉的后台任务才能归还名额
+ */
+public class BackgroundDownloadLimiter {
+    private static final int DEFAULT_MAX_RUNNING_COUNT = 2;
+
+    private int maxRunningCount = DEFAULT_MAX_RUNNING_COUNT;
+    private int runningCount;
+    private LinkedList<LimitedTask> waitingTasks = new LinkedList<LimitedTask>();
+
+    /**
+     * 提交一个后台下载任务，没有超出上限就马上交给网络线程池，否则排队等待
+     * @param executor 网络线程池
+     * @param task 下载任务
+     */
+    public synchronized void execute(Executor executor, Runnable task){
+        LimitedTask limitedTask = new LimitedTask(executor, task);
+        if(runningCount >= maxRunningCount){
+            waitingTasks.add(limitedTask);
+            return;
+        }
+        submit(limitedTask);
+    }
+
+    /**
+     * 设置后台下载最多同时占用的网络线程数
+     * @param maxRunningCount 最多同时占用的网络线程数，默认2
+     */
+    public synchronized void setMaxRunningCount(int maxRunningCount) {
+        if(maxRunningCount > 0){
+            this.maxRunningCount = maxRunningCount;
+        }
+    }
+
+    private void submit(LimitedTask limitedTask){
+        runningCount++;
+        limitedTask.executor.execute(limitedTask);
+    }
+
+    /**
+     * 任务执行完了或者被线程池丢掉了，归还名额并提交排队的任务
+     */
+    private synchronized void onTaskFinished(){
+        runningCount--;
+        while(runningCount < maxRunningCount && !waitingTasks.isEmpty()){
+            submit(waitingTasks.poll());
+        }
+    }
+
+    private class LimitedTask implements DiscardableTask {
+        private Executor executor;
+        private Runnable task;
+
+        private LimitedTask(Executor executor, Runnable task) {
+            this.executor = executor;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                onTaskFinished();
+            }
+        }
+
+        @Override
+        public void onDiscarded() {
+            onTaskFinished();
+        }
+    }
+}
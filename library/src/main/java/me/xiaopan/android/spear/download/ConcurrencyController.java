@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+/**
+ * 网络并发数控制器，根据每次下载的实测数据动态调整同时下载的数量
+ */
+public interface ConcurrencyController {
+    /**
+     * 获取当前的并发数
+     * @return 并发数
+     */
+    public int getConcurrency();
+
+    /**
+     * 一次网络下载完成了
+     * @param length 数据长度，单位字节
+     * @param firstByteTime 从发起请求到收到响应头的耗时（TTFB），单位毫秒
+     * @param time 下载总耗时，单位毫秒
+     */
+    public void onDownloadCompleted(long length, long firstByteTime, long time);
+
+    /**
+     * 一次网络下载超时了，通常意味着网络拥塞
+     */
+    public void onDownloadTimeout();
+
+    /**
+     * 设置并发数的范围
+     * @param minConcurrency 最小并发数
+     * @param maxConcurrency 最大并发数
+     */
+    public void setConcurrencyRange(int minConcurrency, int maxConcurrency);
+}
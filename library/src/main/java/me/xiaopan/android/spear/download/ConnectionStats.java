@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接统计，用来观察Keep-Alive连接的复用情况
+ */
+public class ConnectionStats {
+    private boolean estimated;  // 新建和复用的连接数是不是估算的
+    private AtomicInteger openedCount = new AtomicInteger();  // 新建的连接数
+    private AtomicInteger reusedCount = new AtomicInteger();  // 复用的连接数
+    private AtomicInteger keptAliveCount = new AtomicInteger();   // 释放后放回连接池的连接数
+    private AtomicInteger discardedCount = new AtomicInteger();   // 释放时直接断开的连接数
+
+    public ConnectionStats() {
+        this(false);
+    }
+
+    /**
+     * @param estimated true：无法直接知道连接是否被复用，新建和复用的连接数只是估算的
+     */
+    public ConnectionStats(boolean estimated) {
+        this.estimated = estimated;
+    }
+
+    void onOpened(){
+        openedCount.incrementAndGet();
+    }
+
+    void onReused(){
+        reusedCount.incrementAndGet();
+    }
+
+    void onKeptAlive(){
+        keptAliveCount.incrementAndGet();
+    }
+
+    void onDiscarded(){
+        discardedCount.incrementAndGet();
+    }
+
+    /**
+     * 新建和复用的连接数是不是估算的，HttpURLConnection无法直接知道连接是否被复用，只能根据同一地址最近放回连接池的连接来估算
+     */
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    /**
+     * 获取新建的连接数，isEstimated()为true时是估算的
+     */
+    public int getOpenedCount() {
+        return openedCount.get();
+    }
+
+    /**
+     * 获取复用的连接数，isEstimated()为true时是估算的
+     */
+    public int getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /**
+     * 获取释放后放回连接池的连接数
+     */
+    public int getKeptAliveCount() {
+        return keptAliveCount.get();
+    }
+
+    /**
+     * 获取释放时直接断开的连接数
+     */
+    public int getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * 重置所有计数
+     */
+    public void reset(){
+        openedCount.set(0);
+        reusedCount.set(0);
+        keptAliveCount.set(0);
+        discardedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{" +
+                "estimated=" + estimated +
+                ", opened=" + openedCount.get() +
+                ", reused=" + reusedCount.get() +
+                ", keptAlive=" + keptAliveCount.get() +
+                ", discarded=" + discardedCount.get() +
+                '}';
+    }
+}
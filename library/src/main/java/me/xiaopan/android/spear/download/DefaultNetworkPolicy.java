@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.util.ImageSize;
+
+/**
+ * 默认的网络策略，通过ConnectivityManager获取网络类型（需要ACCESS_NETWORK_STATE权限），并结合实测的下载速度来判断网络状况
+ */
+public class DefaultNetworkPolicy implements NetworkPolicy {
+    private static final String NAME = "DefaultNetworkPolicy";
+    private static final int NETWORK_INFO_REFRESH_INTERVAL = 3 * 1000;    // 网络信息刷新间隔
+    private static final int SLOW_THROUGHPUT = 20 * 1024;    // 实测速度低于每秒20K就认为是慢速网络
+    private static final int MIN_SAMPLE_LENGTH = 32 * 1024;    // 小于32K的下载主要受延迟影响，测不出速度，不统计
+    private static final float THROUGHPUT_SMOOTHING_FACTOR = 0.3f; // 下载速度的平滑系数，越大新样本的权重越高
+
+    private Context context;
+    private int fastNetConcurrency = 8;
+    private int mediumNetConcurrency = 4;
+    private int slowNetConcurrency = 2;
+    private float slowNetworkMaxsizeScale = 0.5f;
+
+    private long lastRefreshTime;
+    private int lastNetworkType = -1;
+    private boolean metered;
+    private NetworkQuality connectionQuality = NetworkQuality.FAST;
+    private float throughput;  // 实测下载速度，单位字节每秒，0表示还没有数据
+
+    public DefaultNetworkPolicy(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    @Override
+    public synchronized NetworkQuality getNetworkQuality() {
+        refreshNetworkInfo();
+        if(connectionQuality != NetworkQuality.NONE && throughput > 0 && throughput < SLOW_THROUGHPUT){
+            return NetworkQuality.SLOW;
+        }
+        return connectionQuality;
+    }
+
+    @Override
+    public int getNetConcurrency() {
+        switch (getNetworkQuality()){
+            case FAST :
+                return fastNetConcurrency;
+            case MEDIUM :
+                return mediumNetConcurrency;
+            default :
+                return slowNetConcurrency;
+        }
+    }
+
+    @Override
+    public ImageSize adjustMaxsize(ImageSize maxsize) {
+        if(maxsize == null || slowNetworkMaxsizeScale >= 1 || getNetworkQuality() != NetworkQuality.SLOW){
+            return maxsize;
+        }
+        return new ImageSize((int) (maxsize.getWidth() * slowNetworkMaxsizeScale), (int) (maxsize.getHeight() * slowNetworkMaxsizeScale));
+    }
+
+    @Override
+    public String selectUri(String uri, ImageSize maxsize) {
+        return uri;
+    }
+
+    @Override
+    public synchronized boolean isPrefetchAllowed() {
+        NetworkQuality networkQuality = getNetworkQuality();
+        return !metered && networkQuality != NetworkQuality.NONE && networkQuality != NetworkQuality.SLOW;
+    }
+
+    @Override
+    public synchronized void onDownloadCompleted(long length, long time) {
+        if(length < MIN_SAMPLE_LENGTH || time <= 0){
+            return;
+        }
+        float currentThroughput = length * 1000f / time;
+        if(throughput <= 0){
+            throughput = currentThroughput;
+        }else{
+            throughput = throughput + THROUGHPUT_SMOOTHING_FACTOR * (currentThroughput - throughput);
+        }
+    }
+
+    /**
+     * 获取实测下载速度
+     * @return 实测下载速度，单位字节每秒，0表示还没有数据
+     */
+    public synchronized float getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * 当前网络是否计费
+     * @return 当前网络是否计费
+     */
+    public synchronized boolean isMetered() {
+        refreshNetworkInfo();
+        return metered;
+    }
+
+    /**
+     * 设置各种网络状况下的网络任务并发数
+     * @param fastNetConcurrency 快速网络下的并发数，默认8
+     * @param mediumNetConcurrency 中速网络下的并发数，默认4
+     * @param slowNetConcurrency 慢速网络下的并发数，默认2
+     */
+    public void setNetConcurrency(int fastNetConcurrency, int mediumNetConcurrency, int slowNetConcurrency) {
+        if(fastNetConcurrency > 0){
+            this.fastNetConcurrency = fastNetConcurrency;
+        }
+        if(mediumNetConcurrency > 0){
+            this.mediumNetConcurrency = mediumNetConcurrency;
+        }
+        if(slowNetConcurrency > 0){
+            this.slowNetConcurrency = slowNetConcurrency;
+        }
+    }
+
+    /**
+     * 设置慢速网络下maxsize的缩放比例
+     * @param slowNetworkMaxsizeScale 缩放比例，默认0.5，大于等于1表示不缩放
+     */
+    public void setSlowNetworkMaxsizeScale(float slowNetworkMaxsizeScale) {
+        if(slowNetworkMaxsizeScale > 0){
+            this.slowNetworkMaxsizeScale = slowNetworkMaxsizeScale;
+        }
+    }
+
+    /**
+     * 刷新网络信息，为了避免频繁调用系统服务，在刷新间隔内直接使用上次的结果
+     */
+    private void refreshNetworkInfo(){
+        long currentTime = SystemClock.elapsedRealtime();
+        if(lastRefreshTime != 0 && currentTime - lastRefreshTime < NETWORK_INFO_REFRESH_INTERVAL){
+            return;
+        }
+        lastRefreshTime = currentTime;
+
+        NetworkInfo networkInfo;
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        } catch (SecurityException e) {
+            if(Spear.isDebugMode()){
+                Log.w(Spear.TAG, NAME + "：" + "没有ACCESS_NETWORK_STATE权限，无法获取网络状况");
+            }
+            connectionQuality = NetworkQuality.FAST;
+            metered = false;
+            return;
+        }
+
+        if(networkInfo == null || !networkInfo.isConnected()){
+            connectionQuality = NetworkQuality.NONE;
+            metered = true;
+            lastNetworkType = -1;
+            return;
+        }
+
+        // 网络类型变了之前的实测速度就没有参考价值了
+        int networkType = networkInfo.getType() * 100 + networkInfo.getSubtype();
+        if(networkType != lastNetworkType){
+            lastNetworkType = networkType;
+            throughput = 0;
+        }
+
+        if(networkInfo.getType() == ConnectivityManager.TYPE_WIFI || networkInfo.getType() == ConnectivityManager.TYPE_ETHERNET){
+            connectionQuality = NetworkQuality.FAST;
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+                metered = connectivityManager.isActiveNetworkMetered();
+            }else{
+                metered = false;
+            }
+        }else{
+            connectionQuality = getMobileNetworkQuality(networkInfo.getSubtype());
+            metered = true;
+        }
+    }
+
+    private static NetworkQuality getMobileNetworkQuality(int subtype){
+        switch (subtype){
+            case TelephonyManager.NETWORK_TYPE_GPRS :
+            case TelephonyManager.NETWORK_TYPE_EDGE :
+            case TelephonyManager.NETWORK_TYPE_CDMA :
+            case TelephonyManager.NETWORK_TYPE_1xRTT :
+            case TelephonyManager.NETWORK_TYPE_IDEN :
+                return NetworkQuality.SLOW;
+            case TelephonyManager.NETWORK_TYPE_LTE :
+            case TelephonyManager.NETWORK_TYPE_HSPAP :
+                return NetworkQuality.FAST;
+            default :
+                return NetworkQuality.MEDIUM;
+        }
+    }
+}
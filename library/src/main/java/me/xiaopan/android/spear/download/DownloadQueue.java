@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.request.DownloadListener;
+import me.xiaopan.android.spear.util.FailureCause;
+
+/**
+ * 持久化的下载队列，适合批量缓存图片（例如离线保存整个相册）。
+ * <br>添加的URI会先写入磁盘上的日志文件，每完成一个就记录一次，进程被杀死后调用start()就能从上次的位置继续下载；
+ * <br>每次最多只有batchSize个请求交给网络线程池，不会因为线程池队列满了而丢弃任务
+ */
+public class DownloadQueue {
+    private static final String NAME = "DownloadQueue";
+    private static final String JOURNAL_FILE_NAME = "spear_download_queue.journal";
+    private static final String ACTION_ADD = "A";   // 日志 - 添加
+    private static final String ACTION_COMPLETED = "C"; // 日志 - 已完成
+    private static final String ACTION_FAILED = "F";    // 日志 - 已失败
+    private static final int DEFAULT_BATCH_SIZE = 3;
+
+    private Spear spear;
+    private File journalFile;
+    private BufferedWriter journalWriter;
+    private Handler handler;
+    private Listener listener;
+
+    private LinkedList<String> pendingUris;    // 等待下载的URI，为null表示还没有读取日志
+    private Set<String> runningUris;
+    private LinkedList<String> deferredUris;    // 被取消或者因为离线失败的URI，下次调用start()时再下载
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int totalCount;
+    private int completedCount;
+    private int failedCount;
+    private boolean started;
+
+    public DownloadQueue(Spear spear) {
+        this.spear = spear;
+        this.journalFile = new File(spear.getConfiguration().getContext().getFilesDir(), JOURNAL_FILE_NAME);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.runningUris = new HashSet<String>();
+        this.deferredUris = new LinkedList<String>();
+    }
+
+    /**
+     * 添加一个URI
+     * @param uri 只支持http或https协议
+     */
+    public void add(String uri){
+        add(Collections.singletonList(uri));
+    }
+
+    /**
+     * 批量添加URI，重复的URI会被忽略
+     * @param uris 只支持http或https协议
+     */
+    public void add(final Collection<String> uris){
+        spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadQueue.this){
+                    loadJournal();
+                    for(String uri : uris){
+                        if(uri == null || pendingUris.contains(uri) || runningUris.contains(uri) || deferredUris.contains(uri)){
+                            continue;
+                        }
+                        pendingUris.add(uri);
+                        totalCount++;
+                        writeJournal(ACTION_ADD, uri);
+                    }
+                    flushJournal();
+                }
+                notifyProgress();
+                scheduleNext();
+            }
+        });
+    }
+
+    /**
+     * 开始下载，也用来在应用启动后恢复上次没有完成的下载，或者在网络恢复后继续下载
+     */
+    public void start(){
+        spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadQueue.this){
+                    started = true;
+                    loadJournal();
+                    pendingUris.addAll(0, deferredUris);
+                    deferredUris.clear();
+                }
+                scheduleNext();
+            }
+        });
+    }
+
+    /**
+     * 停止下载，正在下载的会继续完成，剩下的会保留在日志中
+     */
+    public synchronized void stop(){
+        started = false;
+    }
+
+    /**
+     * 清空队列并删除日志，正在下载的会继续完成
+     */
+    public synchronized void clear(){
+        if(pendingUris != null){
+            pendingUris.clear();
+        }
+        deferredUris.clear();
+        totalCount = runningUris.size();
+        completedCount = 0;
+        failedCount = 0;
+        closeJournal();
+        if(journalFile.exists() && !journalFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除日志文件失败：" + journalFile.getPath());
+        }
+    }
+
+    /**
+     * 设置同时交给网络线程池的最大请求数
+     * @param batchSize 最大请求数，默认3
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        if(batchSize > 0){
+            this.batchSize = batchSize;
+        }
+    }
+
+    /**
+     * 设置监听器，所有回调都在主线程中执行
+     * @param listener 监听器
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 读取日志，恢复上次没有完成的URI
+     */
+    private void loadJournal(){
+        if(pendingUris != null){
+            return;
+        }
+
+        pendingUris = new LinkedList<String>();
+        if(!journalFile.exists()){
+            return;
+        }
+
+        Set<String> addedUris = new LinkedHashSet<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.length() < 3){
+                    continue;
+                }
+                String action = line.substring(0, 1);
+                String uri = line.substring(2);
+                if(ACTION_ADD.equals(action)){
+                    if(addedUris.add(uri)){
+                        totalCount++;
+                    }
+                }else if(ACTION_COMPLETED.equals(action)){
+                    if(addedUris.remove(uri)){
+                        completedCount++;
+                    }
+                }else if(ACTION_FAILED.equals(action)){
+                    if(addedUris.remove(uri)){
+                        failedCount++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "读取日志文件失败：" + e.getMessage());
+        } finally {
+            DownloadUtils.close(reader);
+        }
+        pendingUris.addAll(addedUris);
+
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "恢复下载队列" + "；" + "等待" + "=" + pendingUris.size() + "；" + "已完成" + "=" + completedCount + "；" + "已失败" + "=" + failedCount);
+        }
+    }
+
+    /**
+     * 在不超过batchSize的前提下把等待中的URI交给网络线程池，用循环而不是递归，因为有些失败会在fire()中同步回调
+     */
+    private void scheduleNext(){
+        while(true){
+            List<String> uris = takeNextUris();
+            if(uris.isEmpty()){
+                return;
+            }
+            // 不持有锁，同步回调的失败在handleFinished()中只会更新计数
+            for(String uri : uris){
+                spear.download(uri, new QueueDownloadListener(uri)).fire();
+            }
+        }
+    }
+
+    /**
+     * 在分发线程中执行scheduleNext()
+     */
+    private void postScheduleNext(){
+        spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduleNext();
+            }
+        });
+    }
+
+    /**
+     * 取出下一批要下载的URI，全部完成了就删除日志
+     * @return 下一批要下载的URI，可能为空
+     */
+    private synchronized List<String> takeNextUris(){
+        List<String> uris = new LinkedList<String>();
+        while(started && pendingUris != null && !pendingUris.isEmpty() && runningUris.size() < batchSize){
+            if(spear.isOffline()){
+                if(Spear.isDebugMode()){
+                    Log.w(Spear.TAG, NAME + "：" + "离线状态，暂停下载，等待再次调用start()");
+                }
+                return uris;
+            }
+            String uri = pendingUris.poll();
+            runningUris.add(uri);
+            uris.add(uri);
+        }
+        if(!uris.isEmpty()){
+            return uris;
+        }
+
+        // 全部完成了就删除日志
+        if(pendingUris != null && pendingUris.isEmpty() && runningUris.isEmpty() && deferredUris.isEmpty() && totalCount > 0){
+            final int finalCompletedCount = completedCount;
+            final int finalFailedCount = failedCount;
+            closeJournal();
+            if(journalFile.exists() && !journalFile.delete()){
+                Log.w(Spear.TAG, NAME + "：" + "删除日志文件失败：" + journalFile.getPath());
+            }
+            totalCount = 0;
+            completedCount = 0;
+            failedCount = 0;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(listener != null){
+                        listener.onFinished(finalCompletedCount, finalFailedCount);
+                    }
+                }
+            });
+        }
+        return uris;
+    }
+
+    private void handleFinished(String uri, boolean success, boolean retryLater){
+        synchronized (this){
+            if(!runningUris.remove(uri)){
+                return;
+            }
+            if(retryLater){
+                // 取消或离线导致的失败等下次调用start()时再试，不马上重新下载
+                deferredUris.add(uri);
+            }else{
+                if(success){
+                    completedCount++;
+                }else{
+                    failedCount++;
+                }
+                writeJournal(success ? ACTION_COMPLETED : ACTION_FAILED, uri);
+                flushJournal();
+            }
+        }
+        if(!retryLater){
+            notifyProgress();
+        }
+
+        // 可能是在fire()中同步回调的，不能在这里直接调度，否则队列越长递归越深
+        postScheduleNext();
+    }
+
+    private void notifyProgress(){
+        final int finalCompletedCount;
+        final int finalFailedCount;
+        final int finalTotalCount;
+        synchronized (this){
+            finalCompletedCount = completedCount;
+            finalFailedCount = failedCount;
+            finalTotalCount = totalCount;
+        }
+        if(finalTotalCount <= 0){
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(listener != null){
+                    listener.onProgress(finalCompletedCount, finalFailedCount, finalTotalCount);
+                }
+            }
+        });
+    }
+
+    private void writeJournal(String action, String uri){
+        try {
+            if(journalWriter == null){
+                journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+            }
+            journalWriter.write(action);
+            journalWriter.write(' ');
+            journalWriter.write(uri);
+            journalWriter.newLine();
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "写入日志文件失败：" + e.getMessage());
+        }
+    }
+
+    private void flushJournal(){
+        if(journalWriter == null){
+            return;
+        }
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "写入日志文件失败：" + e.getMessage());
+        }
+    }
+
+    private void closeJournal(){
+        if(journalWriter != null){
+            DownloadUtils.close(journalWriter);
+            journalWriter = null;
+        }
+    }
+
+    private class QueueDownloadListener implements DownloadListener {
+        private String uri;
+
+        private QueueDownloadListener(String uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        public void onStarted() {
+
+        }
+
+        @Override
+        public void onCompleted(File cacheFile, boolean isFromNetwork) {
+            handleFinished(uri, true, false);
+        }
+
+        @Override
+        public void onCompleted(byte[] data) {
+            handleFinished(uri, true, false);
+        }
+
+        @Override
+        public void onFailed(FailureCause failureCause) {
+            handleFinished(uri, false, spear.isOffline());
+        }
+
+        @Override
+        public void onCanceled() {
+            handleFinished(uri, false, true);
+        }
+    }
+
+    /**
+     * 下载队列监听器
+     */
+    public interface Listener {
+        /**
+         * 进度更新
+         * @param completedCount 已完成数量
+         * @param failedCount 已失败数量
+         * @param totalCount 总数量
+         */
+        public void onProgress(int completedCount, int failedCount, int totalCount);
+
+        /**
+         * 队列中的所有URI都处理完了
+         * @param completedCount 已完成数量
+         * @param failedCount 已失败数量
+         */
+        public void onFinished(int completedCount, int failedCount);
+    }
+}
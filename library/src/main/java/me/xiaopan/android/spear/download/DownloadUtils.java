@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+
+import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.cache.DiskCache;
+import me.xiaopan.android.spear.download.ImageDownloader.DownloadResult;
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * 下载器共用的工具方法，包括URL锁、缓存文件锁、读取数据以及关闭流
+ */
+public class DownloadUtils {
+    private static final String NAME = "DownloadUtils";
+    private static final int BUFFER_SIZE = 8*1024;
+    private static final int URL_LOCK_CHECK_INTERVAL = 100;    // 等待URL锁时检查是否已取消的间隔
+
+    private DownloadUtils(){
+
+    }
+
+    /**
+     * 获取URL锁，等待期间会定时检查请求是否已取消，已取消就不再等待；前台请求等锁时会把持有者提升为前台流量
+     * @param urlLock URL锁
+     * @param request 下载请求
+     * @return true：拿到锁了；false：请求已取消，没有拿到锁
+     */
+    public static boolean lockUrl(UrlLock urlLock, DownloadRequest request){
+        while(!request.isDownloadAborted()){
+            if(request.getTrafficClass() == TrafficClass.FOREGROUND){
+                urlLock.promoteHolder();
+            }
+            try {
+                if(urlLock.tryLock(URL_LOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS)){
+                    urlLock.setHolder(request);
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 多进程共享磁盘缓存时锁定缓存文件，防止多个进程同时下载同一个文件，等待的时候会检查是否已取消
+     * @param request 下载请求
+     * @return 锁；null：不需要锁、请求已取消或者加锁失败，加锁失败时就不加锁继续下载
+     */
+    public static FileLock lockCacheFile(DownloadRequest request){
+        DiskCache diskCache = request.getSpear().getConfiguration().getDiskCache();
+        if(request.getCacheFile() == null || !diskCache.isMultiProcess()){
+            return null;
+        }
+        while(!request.isDownloadAborted()){
+            try {
+                FileLock lock = diskCache.tryLockCacheFile(request.getCacheKey());
+                if(lock != null){
+                    return lock;
+                }
+                Thread.sleep(URL_LOCK_CHECK_INTERVAL);
+            } catch (IOException e) {
+                Log.w(Spear.TAG, NAME + "：" + "锁定缓存文件失败：" + e.getMessage() + "；" + request.getName());
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public static void close(Closeable closeable){
+        if(closeable == null){
+            return;
+        }
+
+        if(closeable instanceof OutputStream){
+            try {
+                ((OutputStream) closeable).flush();
+            } catch (IOException e) {
+                Log.w(Spear.TAG, NAME + "：" + "关闭失败：" + e.getMessage());
+            }
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "关闭失败：" + e.getMessage());
+        }
+    }
+
+    public static int readData(InputStream inputStream, OutputStream outputStream, DownloadRequest downloadRequest, int contentLength, int progressCallbackAccuracy) throws IOException {
+        int readNumber;
+        int completedLength = 0;
+        ProgressThrottle progressThrottle = new ProgressThrottle(contentLength, progressCallbackAccuracy);
+        byte[] cacheBytes = new byte[4*1024];
+        RateLimiter rateLimiter = downloadRequest.getSpear().getConfiguration().getRateLimiter();
+        while(!downloadRequest.isDownloadAborted() && (readNumber = inputStream.read(cacheBytes)) != -1){
+            outputStream.write(cacheBytes, 0, readNumber);
+            completedLength += readNumber;
+            downloadRequest.setDownloadedLength(contentLength, completedLength);
+            if(progressThrottle.shouldCallback(completedLength) && !downloadRequest.isCanceled()){
+                downloadRequest.handleUpdateProgress(contentLength, completedLength);
+            }
+            rateLimiter.acquire(downloadRequest, readNumber);
+        }
+        outputStream.flush();
+        return completedLength;
+    }
+
+    /**
+     * 把输入流交给DownloadStreamListener，由调用者读取数据
+     * @return null：已取消或者调用者抛出了异常
+     */
+    public static DownloadResult streamData(InputStream inputStream, DownloadRequest request, int contentLength, int progressCallbackNumber){
+        DownloadInputStream downloadInputStream = new DownloadInputStream(inputStream, request, contentLength, progressCallbackNumber);
+        try {
+            request.getStreamListener().onStream(downloadInputStream, contentLength);
+        } catch (IOException e) {
+            if (Spear.isDebugMode() && !request.isDownloadAborted()) Log.w(Spear.TAG, NAME + "：" + "流式下载时发生异常：" + e.getMessage() + "；" + request.getName());
+            return null;
+        }
+        if(request.isDownloadAborted()){
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 流式下载" + "；" + request.getName());
+            return null;
+        }
+        if (Spear.isDebugMode()) Log.i(Spear.TAG, NAME + "：" + "流式下载成功" + "；" + "读取长度：" + downloadInputStream.getReadLength() + "/" + contentLength + "；" + request.getName());
+        return DownloadResult.createByStream(downloadInputStream.getReadLength(), true);
+    }
+
+    public static boolean createFile(File file){
+        if(file.exists()){
+           return true;
+        }
+
+        File parentDir = file.getParentFile();
+        if(!parentDir.exists() && !parentDir.mkdirs()){
+            return false;
+        }
+        try {
+            if(!file.createNewFile()){
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "创建文件失败：" + e.getMessage() + "；" + file.getPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 进度回调节流，每下载完1/progressCallbackNumber或者距上次回调超过250毫秒就回调一次，这样大文件慢速下载时进度也不会长时间不动；
+     * 两次回调至少间隔16毫秒（一帧），小文件或者高速下载时不会一帧内回调好几次；下载完成时一定回调
+     */
+    static class ProgressThrottle {
+        private static final int MIN_CALLBACK_INTERVAL = 16;
+        private static final int MAX_CALLBACK_INTERVAL = 250;
+
+        private int contentLength;
+        private int stepLength;
+        private int nextCallbackLength;
+        private long lastCallbackTime;
+
+        ProgressThrottle(int contentLength, int progressCallbackNumber) {
+            this.contentLength = contentLength;
+            this.stepLength = Math.max(contentLength / Math.max(progressCallbackNumber, 1), 1);
+            this.nextCallbackLength = stepLength;
+            this.lastCallbackTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * 已完成长度更新后调用，判断这次要不要回调
+         * @param completedLength 已完成长度
+         * @return true：需要回调
+         */
+        boolean shouldCallback(int completedLength){
+            long now = SystemClock.uptimeMillis();
+            if(completedLength != contentLength){
+                long elapsed = now - lastCallbackTime;
+                if(elapsed < MIN_CALLBACK_INTERVAL || (completedLength < nextCallbackLength && elapsed < MAX_CALLBACK_INTERVAL)){
+                    return false;
+                }
+            }
+            while(nextCallbackLength <= completedLength){
+                nextCallbackLength += stepLength;
+            }
+            lastCallbackTime = now;
+            return true;
+        }
+    }
+
+    /**
+     * 交给DownloadStreamListener的输入流，读取时更新进度、限速，请求取消后读取会抛出InterruptedIOException
+     */
+    private static class DownloadInputStream extends FilterInputStream {
+        private DownloadRequest request;
+        private RateLimiter rateLimiter;
+        private int contentLength;
+        private ProgressThrottle progressThrottle;
+        private int readLength;
+
+        public DownloadInputStream(InputStream inputStream, DownloadRequest request, int contentLength, int progressCallbackNumber) {
+            super(inputStream);
+            this.request = request;
+            this.rateLimiter = request.getSpear().getConfiguration().getRateLimiter();
+            this.contentLength = contentLength;
+            this.progressThrottle = new ProgressThrottle(contentLength, progressCallbackNumber);
+        }
+
+        public int getReadLength() {
+            return readLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(request.isDownloadAborted()){
+                throw new InterruptedIOException("download canceled");
+            }
+            int readNumber = in.read(buffer, offset, length);
+            if(readNumber > 0){
+                readLength += readNumber;
+                request.setDownloadedLength(contentLength, readLength);
+                if(progressThrottle.shouldCallback(readLength) && !request.isCanceled()){
+                    request.handleUpdateProgress(contentLength, readLength);
+                }
+                rateLimiter.acquire(request, readNumber);
+            }
+            return readNumber;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(byteCount, BUFFER_SIZE)];
+            long skipped = 0;
+            int readNumber;
+            while(skipped < byteCount && (readNumber = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped))) != -1){
+                skipped += readNumber;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // 由下载器负责关闭
+        }
+    }
+}
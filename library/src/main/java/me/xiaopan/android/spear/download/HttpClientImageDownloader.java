@@ -16,10 +16,12 @@
 
 package me.xiaopan.android.spear.download;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
@@ -42,6 +44,8 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.BufferedOutputStream;
@@ -54,14 +58,16 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileLock;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 
 import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.cache.ProcessLockFile;
 import me.xiaopan.android.spear.request.DownloadRequest;
+import me.xiaopan.android.spear.util.ImageFormat;
 
 /**
  * 使用HttpClient来访问网络的下载器
@@ -77,15 +83,18 @@ public class HttpClientImageDownloader implements ImageDownloader {
     private static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;  // 默认Socket缓存大小
     private static final int DEFAULT_MAX_RETRY_COUNT = 1;    // 默认最大重试次数
     private static final int DEFAULT_PROGRESS_CALLBACK_NUMBER = 10;    // 默认进度回调次数
+    private static final int MAX_DRAIN_LENGTH = 32*1024;    // 释放连接时最多读取并丢弃的数据长度，超过了就直接中止
     private static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows NT 6.0; WOW64) AppleWebKit/534.24 (KHTML, like Gecko) Chrome/11.0.696.16 Safari/534.24";
 
     private DefaultHttpClient httpClient;
-	private Map<String, ReentrantLock> urlLocks;
+	private Map<String, UrlLock> urlLocks;
     private int maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
     private int progressCallbackNumber = DEFAULT_PROGRESS_CALLBACK_NUMBER;
+    private ConnectionStats connectionStats;
 
 	public HttpClientImageDownloader() {
-		this.urlLocks = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+		this.urlLocks = Collections.synchronizedMap(new WeakHashMap<String, UrlLock>());
+        this.connectionStats = new ConnectionStats();
 		BasicHttpParams httpParams = new BasicHttpParams();
         ConnManagerParams.setTimeout(httpParams, DEFAULT_WAIT_TIMEOUT);
         ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(DEFAULT_MAX_ROUTE_CONNECTIONS));
@@ -120,15 +129,20 @@ public class HttpClientImageDownloader implements ImageDownloader {
         this.progressCallbackNumber = progressCallbackNumber;
     }
 
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
     /**
      * 获取一个URL锁，通过此锁可以防止重复下载
      * @param url 下载地址
      * @return URL锁
      */
-	public synchronized ReentrantLock getUrlLock(String url){
-		ReentrantLock urlLock = urlLocks.get(url);
+	public synchronized UrlLock getUrlLock(String url){
+		UrlLock urlLock = urlLocks.get(url);
 		if(urlLock == null){
-			urlLock = new ReentrantLock();
+			urlLock = new UrlLock();
 			urlLocks.put(url, urlLock);
 		}
 		return urlLock;
@@ -138,59 +152,98 @@ public class HttpClientImageDownloader implements ImageDownloader {
 	public DownloadResult download(DownloadRequest request) {
         // 根据下载地址加锁，防止重复下载
         request.toGetDownloadLockStatus();
-        ReentrantLock urlLock = getUrlLock(request.getUri());
-        urlLock.lock();
-
-        request.toDownloadingStatus();
-        DownloadResult result = null;
-        int number = 0;
-        while(true){
-            // 如果已经取消了就直接结束
-            if (request.isCanceled()) {
-                if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 拿到锁之后" + "；" + request.getName());
-                break;
-            }
+        UrlLock urlLock = getUrlLock(request.getCacheKey());
+        if(!DownloadUtils.lockUrl(urlLock, request)){
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 等待锁的时候" + "；" + request.getName());
+            return null;
+        }
 
-            // 如果缓存文件已经存在了就直接返回缓存文件
-            File cacheFile = request.getCacheFile();
-            if (cacheFile != null && cacheFile.exists()) {
-                result = DownloadResult.createByFile(cacheFile, false);
-                break;
+        FileLock cacheFileLock = null;
+        try{
+            // 多进程共享磁盘缓存时还要锁住缓存文件，防止其它进程同时下载
+            cacheFileLock = DownloadUtils.lockCacheFile(request);
+            if(cacheFileLock == null && request.isDownloadAborted()){
+                if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 等待缓存文件锁的时候" + "；" + request.getName());
+                return null;
             }
 
-            try {
-                result = realDownload(request);
-                break;
-            } catch (Throwable e) {
-                boolean retry = (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) && number < maxRetryCount;
-                if(retry){
-                    number++;
-                    if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "；" + "下载异常 - 再次尝试" + "；" + request.getName());
-                }else{
-                    if (Spear.isDebugMode()) Log.e(Spear.TAG, NAME + "；" + "下载异常 - 不再尝试" + "；" + request.getName());
+            request.toDownloadingStatus();
+            DownloadResult result = null;
+            int number = 0;
+            while(true){
+                // 如果已经取消了就直接结束
+                if (request.isDownloadAborted()) {
+                    if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 拿到锁之后" + "；" + request.getName());
+                    break;
                 }
-                e.printStackTrace();
-                if(!retry){
+
+                // 如果缓存文件已经存在了就直接返回缓存文件
+                File cacheFile = request.refreshCacheFile();
+                if (cacheFile != null && cacheFile.exists()) {
+                    result = DownloadResult.createByFile(cacheFile, false);
+                    break;
+                }
+
+                try {
+                    long startTime = SystemClock.elapsedRealtime();
+                    result = realDownload(request);
+                    if(result != null){
+                        result.setDownloadTime(SystemClock.elapsedRealtime() - startTime);
+
+                        // 去重要在释放锁之前做
+                        if(result.getResult() instanceof File){
+                            result.setResult(request.deduplicateCacheFile((File) result.getResult()));
+                        }
+                    }
                     break;
+                } catch (Throwable e) {
+                    if (request.isDownloadAborted()) {
+                        if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 请求已中止" + "；" + request.getName());
+                        break;
+                    }
+                    if(e instanceof SocketTimeoutException){
+                        request.getSpear().getConfiguration().getConcurrencyController().onDownloadTimeout();
+                    }
+                    boolean retry = (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) && number < maxRetryCount;
+                    if(retry){
+                        number++;
+                        if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "；" + "下载异常 - 再次尝试" + "；" + request.getName());
+                    }else{
+                        if (Spear.isDebugMode()) Log.e(Spear.TAG, NAME + "；" + "下载异常 - 不再尝试" + "；" + request.getName());
+                    }
+                    e.printStackTrace();
+                    if(!retry){
+                        break;
+                    }
+                } finally {
+                    request.setAborter(null);
                 }
             }
+            return result;
+        }finally{
+            // 释放锁
+            ProcessLockFile.release(cacheFileLock);
+            urlLock.unlock();
         }
-
-        // 释放锁
-        urlLock.unlock();
-        return result;
 	}
 
     private DownloadResult realDownload(DownloadRequest request) throws IOException {
+        HttpGet httpGet = new HttpGet(request.getUri());
+        httpGet.addHeader("Accept", ImageFormat.createAcceptHeader());
+        request.setAborter(new HttpGetAborter(httpGet));
+        HttpContext httpContext = new BasicHttpContext();
+        long startTime = SystemClock.elapsedRealtime();
         HttpResponse httpResponse;
         try {
-            httpResponse = httpClient.execute(new HttpGet(request.getUri()));
+            httpResponse = httpClient.execute(httpGet, httpContext);
         } catch (IOException e) {
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "创建连接失败："+e.getMessage() + "；" + request.getName());
             throw e;
         }
-        if (request.isCanceled()) {
-            releaseConnection(httpResponse);
+        long firstByteTime = SystemClock.elapsedRealtime() - startTime;
+        recordConnection(httpContext);
+        if (request.isDownloadAborted()) {
+            abort(httpGet);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 获取Response之后" + "；" + request.getName());
             return null;
         }
@@ -198,13 +251,14 @@ public class HttpClientImageDownloader implements ImageDownloader {
         // 检查状态码
         StatusLine statusLine = httpResponse.getStatusLine();
         if(statusLine == null){
-            releaseConnection(httpResponse);
+            releaseConnection(httpGet, httpResponse);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "获取状态行失败" + "；" + request.getName());
             return null;
         }
         int responseCode = statusLine.getStatusCode();
         if (responseCode != 200) {
-            releaseConnection(httpResponse);
+            releaseConnection(httpGet, httpResponse);
+            request.getSpear().getConfiguration().getFailedUriCache().put(request.getUri());
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "状态码异常："+responseCode + " " + httpResponse.getStatusLine().getReasonPhrase() + "；" + request.getName());
             return null;
         }
@@ -216,19 +270,25 @@ public class HttpClientImageDownloader implements ImageDownloader {
             contentLength = Integer.valueOf(headers[0].getValue());
         }
         if (contentLength <= 0) {
-            releaseConnection(httpResponse);
+            releaseConnection(httpGet, httpResponse);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "内容长度异常："+contentLength + "；" + request.getName());
             return null;
         }
 
-        return readData(request, httpResponse, contentLength);
+        Header contentType = httpResponse.getEntity() != null ? httpResponse.getEntity().getContentType() : null;
+        DownloadResult result = readData(request, httpGet, httpResponse, contentLength);
+        if(result != null){
+            result.setImageFormat(contentType != null ? ImageFormat.valueOfMimeType(contentType.getValue()) : null);
+            result.setFirstByteTime(firstByteTime);
+        }
+        return result;
     }
 
-    private DownloadResult readData(DownloadRequest request, HttpResponse httpResponse, int contentLength) throws IOException {
+    private DownloadResult readData(DownloadRequest request, HttpGet httpGet, HttpResponse httpResponse, int contentLength) throws IOException {
         File tempFile = null;
         if(request.getCacheFile() != null && request.getSpear().getConfiguration().getDiskCache().applyForSpace(contentLength)){
             tempFile = new File(request.getCacheFile().getPath()+".temp");
-            if(!HttpUrlConnectionImageDownloader.createFile(request.getCacheFile())){
+            if(!DownloadUtils.createFile(request.getCacheFile())){
                 tempFile = null;
             }
         }
@@ -238,24 +298,41 @@ public class HttpClientImageDownloader implements ImageDownloader {
         try {
             inputStream = httpResponse.getEntity().getContent();
         } catch (IOException e) {
+            abort(httpGet);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "获取输入流时发生异常：" + e.getMessage() + "；" + request.getName());
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取输入流时发生异常，需要删除临时缓存文件，但删除失败：" + tempFile.getPath() + "；" + request.getName());
             throw e;
         }
-        if (request.isCanceled()) {
-            HttpUrlConnectionImageDownloader.close(inputStream);
+        if (request.isDownloadAborted()) {
+            // 先中止再关闭，否则关闭输入流时会读完剩余的数据
+            abort(httpGet);
+            DownloadUtils.close(inputStream);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 获取输入流之后" + "；" + request.getName());
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "获取输入流之后发现取消，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
             return null;
         }
 
+        // 流式下载，直接把输入流交给调用者，不在内存中缓存整个文件
+        if(tempFile == null && request.getStreamListener() != null){
+            DownloadResult result = DownloadUtils.streamData(inputStream, request, contentLength, progressCallbackNumber);
+            if(result != null && result.getLength() == contentLength){
+                DownloadUtils.close(inputStream);
+                connectionStats.onKeptAlive();
+            }else{
+                abort(httpGet);
+                DownloadUtils.close(inputStream);
+            }
+            return result;
+        }
+
         // 当不需要将数据缓存到本地的时候就使用ByteArrayOutputStream来存储数据
         OutputStream outputStream;
         if(tempFile != null){
             try {
                 outputStream = new BufferedOutputStream(new FileOutputStream(tempFile, false), BUFFER_SIZE);
             } catch (FileNotFoundException e) {
-                HttpUrlConnectionImageDownloader.close(inputStream);
+                abort(httpGet);
+                DownloadUtils.close(inputStream);
                 Log.w(Spear.TAG, NAME + "：" + "创建输出流时找不到文件了："+tempFile.getPath() + "；" + request.getName());
                 throw e;
             }
@@ -267,22 +344,29 @@ public class HttpClientImageDownloader implements ImageDownloader {
         int completedLength = 0;
         boolean exception = false;
         try {
-            completedLength = HttpUrlConnectionImageDownloader.readData(inputStream, outputStream, request, contentLength, progressCallbackNumber);
+            completedLength = DownloadUtils.readData(inputStream, outputStream, request, contentLength, progressCallbackNumber);
         } catch (IOException e) {
             exception = true;
+            abort(httpGet);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "读取数据时发生异常："+e.getMessage() + "；" + request.getName());
             throw e;
         }finally {
-            HttpUrlConnectionImageDownloader.close(outputStream);
-            HttpUrlConnectionImageDownloader.close(inputStream);
+            if(request.isDownloadAborted()){
+                abort(httpGet);
+            }
+            DownloadUtils.close(outputStream);
+            DownloadUtils.close(inputStream);
             if (exception && tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取数据时发生异常，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
         }
-        if (request.isCanceled()) {
+        if (request.isDownloadAborted()) {
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 读取完数据之后" + "；" + request.getName());
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取完数据之后发现取消了，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
             return null;
         }
 
+        // 数据已经读完并关闭了输入流，连接会被放回连接池
+        connectionStats.onKeptAlive();
+
         if (Spear.isDebugMode()) Log.i(Spear.TAG, NAME + "：" + "下载成功" + "；" + "文件长度：" + completedLength + "/" + contentLength + "；" + request.getName());
 
         // 转换结果
@@ -300,30 +384,70 @@ public class HttpClientImageDownloader implements ImageDownloader {
         }
     }
 
-    public static void releaseConnection(HttpResponse httpResponse){
+    /**
+     * 释放连接，读完并丢弃剩余的响应体，这样连接才能被放回连接池供下次复用；响应体太大或长度未知就直接中止
+     */
+    private void releaseConnection(HttpGet httpGet, HttpResponse httpResponse){
         if(httpResponse == null){
             return;
         }
 
         HttpEntity httpEntity = httpResponse.getEntity();
         if(httpEntity == null){
+            connectionStats.onKeptAlive();
             return;
         }
 
-        InputStream inputStream = null;
-        try {
-            inputStream = httpEntity.getContent();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if(inputStream == null){
+        long contentLength = httpEntity.getContentLength();
+        if(httpGet.isAborted() || contentLength < 0 || contentLength > MAX_DRAIN_LENGTH){
+            abort(httpGet);
             return;
         }
 
         try {
-            inputStream.close();
+            httpEntity.consumeContent();
+            connectionStats.onKeptAlive();
         } catch (IOException e) {
             e.printStackTrace();
+            abort(httpGet);
+        }
+    }
+
+    /**
+     * 中止请求，连接不再复用
+     */
+    private void abort(HttpGet httpGet){
+        if(!httpGet.isAborted()){
+            httpGet.abort();
+            connectionStats.onDiscarded();
+        }
+    }
+
+    /**
+     * 根据连接已经处理过的请求数判断连接是新建的还是复用的
+     */
+    private void recordConnection(HttpContext httpContext){
+        Object connection = httpContext.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if(connection instanceof HttpConnection && ((HttpConnection) connection).getMetrics().getRequestCount() > 1){
+            connectionStats.onReused();
+        }else{
+            connectionStats.onOpened();
+        }
+    }
+
+    /**
+     * 通过HttpGet.abort()来中止下载，阻塞中的连接或读取会立即抛出异常
+     */
+    private static class HttpGetAborter implements Aborter {
+        private HttpGet httpGet;
+
+        public HttpGetAborter(HttpGet httpGet) {
+            this.httpGet = httpGet;
+        }
+
+        @Override
+        public void abort() {
+            httpGet.abort();
         }
     }
 
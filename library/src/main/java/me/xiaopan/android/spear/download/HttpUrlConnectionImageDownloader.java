@@ -17,11 +17,11 @@
 package me.xiaopan.android.spear.download;
 
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -29,17 +29,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.cache.ProcessLockFile;
+import me.xiaopan.android.spear.execute.DefaultRequestExecutor;
 import me.xiaopan.android.spear.request.DownloadRequest;
+import me.xiaopan.android.spear.util.ImageFormat;
 
 /**
  * 使用HttpURLConnection来访问网络的下载器
@@ -50,16 +63,29 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
     private static final int DEFAULT_CONNECT_TIMEOUT = 10*1000;    // 默认连接超时时间
     private static final int DEFAULT_MAX_RETRY_COUNT = 1;    // 默认最大重试次数
     private static final int DEFAULT_PROGRESS_CALLBACK_NUMBER = 10;    // 默认进度回调次数
+    private static final int MAX_DRAIN_LENGTH = 32*1024;    // 释放连接时最多读取并丢弃的数据长度，超过了就直接断开
+    private static final int KEEP_ALIVE_DURATION = 5*60*1000;    // 系统连接池中空闲连接的存活时间
+    private static final int MAX_IDLE_CONNECTIONS = 5;    // 系统连接池中每个地址最多保留的空闲连接数
+    private static final int DEFAULT_SEGMENT_MIN_CONTENT_LENGTH = 2*1024*1024;    // 默认内容长度超过2M才分段下载
+    private static final int MAX_SEGMENT_THREADS = 8;    // 分段下载线程数上限
 	private static final String NAME = "HttpUrlConnectionImageDownloader";
 
-	private Map<String, ReentrantLock> urlLocks;
+	private Map<String, UrlLock> urlLocks;
+    private Map<String, LinkedList<Long>> idleConnections;  // 放回连接池的时间，用来估算连接是否被复用
+    private ConnectionStats connectionStats;
+    private int segmentCount;   // 分段数，小于等于1表示不分段下载
+    private int segmentMinContentLength = DEFAULT_SEGMENT_MIN_CONTENT_LENGTH;
+    private ExecutorService segmentExecutor;
+    private int segmentConnectionCount;    // 正在使用的额外分段连接数，和网络线程一起受并发数限制
     private int maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
     private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
     private int readTimeout = DEFAULT_READ_TIMEOUT;
     private int progressCallbackNumber = DEFAULT_PROGRESS_CALLBACK_NUMBER;
 
 	public HttpUrlConnectionImageDownloader() {
-		this.urlLocks = Collections.synchronizedMap(new WeakHashMap<String, ReentrantLock>());
+		this.urlLocks = Collections.synchronizedMap(new WeakHashMap<String, UrlLock>());
+        this.idleConnections = new HashMap<String, LinkedList<Long>>();
+        this.connectionStats = new ConnectionStats(true);
 	}
 
     @Override
@@ -77,15 +103,74 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         this.progressCallbackNumber = progressCallbackNumber;
     }
 
+    @Override
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    /**
+     * 设置分段下载，内容长度超过minContentLength并且服务器支持Range请求时，同时用多个连接下载不同的区间，服务器不支持时自动改为普通下载
+     * @param segmentCount 分段数，小于等于1表示不分段下载，默认不分段
+     * @param minContentLength 内容长度超过此值才分段下载，单位字节，默认2M
+     */
+    public void setSegmentedDownload(int segmentCount, int minContentLength) {
+        this.segmentCount = segmentCount;
+        if(minContentLength > 0){
+            this.segmentMinContentLength = minContentLength;
+        }
+    }
+
+    private synchronized ExecutorService getSegmentExecutor(){
+        if(segmentExecutor == null){
+            // 额外的连接数已经受并发数限制了，这里的上限只是保险，万一满了就在当前线程中执行
+            segmentExecutor = new ThreadPoolExecutor(0, MAX_SEGMENT_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return segmentExecutor;
+    }
+
+    /**
+     * 申请额外的分段连接，和正在下载的网络线程加起来不能超过并发数上限（ConcurrencyController和NetworkPolicy共同决定）
+     * @param wantedCount 想要的连接数
+     * @return 实际得到的连接数，可能为0
+     */
+    private synchronized int acquireSegmentConnections(DownloadRequest request, int wantedCount){
+        Executor netRequestExecutor = request.getSpear().getConfiguration().getRequestExecutor().getNetRequestExecutor();
+        int concurrency = Math.min(request.getSpear().getConfiguration().getConcurrencyController().getConcurrency(), request.getSpear().getConfiguration().getNetworkPolicy().getNetConcurrency());
+        int activeCount = DefaultRequestExecutor.getActiveCount(netRequestExecutor);
+        if(activeCount < 0){
+            // 不知道网络线程池的状况，保守起见不分段
+            return 0;
+        }
+        int count = Math.max(Math.min(wantedCount, concurrency - activeCount - segmentConnectionCount), 0);
+        segmentConnectionCount += count;
+        return count;
+    }
+
+    private synchronized void releaseSegmentConnection(){
+        segmentConnectionCount--;
+    }
+
+    /**
+     * 获取用于If-Range请求头的验证器，强ETag优先，其次是Last-Modified，弱ETag不能用于If-Range
+     * @return null：没有可用的验证器，不能安全地分段下载
+     */
+    private static String getRangeValidator(HttpURLConnection connection){
+        String eTag = connection.getHeaderField("ETag");
+        if(eTag != null && !eTag.startsWith("W/")){
+            return eTag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
     /**
      * 获取一个URL锁，通过此锁可以防止重复下载
      * @param url 下载地址
      * @return URL锁
      */
-	public synchronized ReentrantLock getUrlLock(String url){
-		ReentrantLock urlLock = urlLocks.get(url);
+	public synchronized UrlLock getUrlLock(String url){
+		UrlLock urlLock = urlLocks.get(url);
 		if(urlLock == null){
-			urlLock = new ReentrantLock();
+			urlLock = new UrlLock();
 			urlLocks.put(url, urlLock);
 		}
 		return urlLock;
@@ -95,6 +180,7 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
         connection.setConnectTimeout(connectTimeout);
         connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept", ImageFormat.createAcceptHeader());
         // HTTP connection reuse which was buggy pre-froyo
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
             connection.setRequestProperty("http.keepAlive", "false");
@@ -106,50 +192,87 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
 	public DownloadResult download(DownloadRequest request) {
         // 根据下载地址加锁，防止重复下载
         request.toGetDownloadLockStatus();
-        ReentrantLock urlLock = getUrlLock(request.getUri());
-        urlLock.lock();
-
-        request.toDownloadingStatus();
-        DownloadResult result = null;
-        int number = 0;
-        while(true){
-            // 如果已经取消了就直接结束
-            if (request.isCanceled()) {
-                if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 拿到锁之后" + "；" + request.getName());
-                break;
-            }
+        UrlLock urlLock = getUrlLock(request.getCacheKey());
+        if(!DownloadUtils.lockUrl(urlLock, request)){
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 等待锁的时候" + "；" + request.getName());
+            return null;
+        }
 
-            // 如果缓存文件已经存在了就直接返回缓存文件
-            File cacheFile = request.getCacheFile();
-            if (cacheFile != null && cacheFile.exists()) {
-                result = DownloadResult.createByFile(cacheFile, false);
-                break;
+        FileLock cacheFileLock = null;
+        try{
+            // 多进程共享磁盘缓存时还要锁住缓存文件，防止其它进程同时下载
+            cacheFileLock = DownloadUtils.lockCacheFile(request);
+            if(cacheFileLock == null && request.isDownloadAborted()){
+                if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 等待缓存文件锁的时候" + "；" + request.getName());
+                return null;
             }
 
-            try {
-                result = realDownload(request);
-                break;
-            } catch (Throwable e) {
-                boolean retry = (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) && number < maxRetryCount;
-                if(retry){
-                    number++;
-                    if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "；" + "下载异常 - 再次尝试" + "；" + request.getName());
-                }else{
-                    if (Spear.isDebugMode()) Log.e(Spear.TAG, NAME + "；" + "下载异常 - 不再尝试" + "；" + request.getName());
+            request.toDownloadingStatus();
+            DownloadResult result = null;
+            int number = 0;
+            while(true){
+                // 如果已经取消了就直接结束
+                if (request.isDownloadAborted()) {
+                    if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 拿到锁之后" + "；" + request.getName());
+                    break;
                 }
-                e.printStackTrace();
-                if(!retry){
+
+                // 如果缓存文件已经存在了就直接返回缓存文件
+                File cacheFile = request.refreshCacheFile();
+                if (cacheFile != null && cacheFile.exists()) {
+                    result = DownloadResult.createByFile(cacheFile, false);
                     break;
                 }
+
+                try {
+                    long startTime = SystemClock.elapsedRealtime();
+                    result = realDownload(request, true);
+                    if(result != null){
+                        result.setDownloadTime(SystemClock.elapsedRealtime() - startTime);
+
+                        // 去重要在释放锁之前做
+                        if(result.getResult() instanceof File){
+                            result.setResult(request.deduplicateCacheFile((File) result.getResult()));
+                        }
+                    }
+                    break;
+                } catch (Throwable e) {
+                    if (request.isDownloadAborted()) {
+                        if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 连接已中止" + "；" + request.getName());
+                        break;
+                    }
+                    if(e instanceof SocketTimeoutException){
+                        request.getSpear().getConfiguration().getConcurrencyController().onDownloadTimeout();
+                    }
+                    boolean retry = (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) && number < maxRetryCount;
+                    if(retry){
+                        number++;
+                        if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "；" + "下载异常 - 再次尝试" + "；" + request.getName());
+                    }else{
+                        if (Spear.isDebugMode()) Log.e(Spear.TAG, NAME + "；" + "下载异常 - 不再尝试" + "；" + request.getName());
+                    }
+                    e.printStackTrace();
+                    if(!retry){
+                        break;
+                    }
+                } finally {
+                    request.setAborter(null);
+                }
             }
+            return result;
+        }finally{
+            // 释放锁
+            ProcessLockFile.release(cacheFileLock);
+            urlLock.unlock();
         }
-
-        // 释放锁
-        urlLock.unlock();
-        return result;
     }
 
-    private DownloadResult realDownload(DownloadRequest request) throws IOException {
+    /**
+     * @param allowSegment 是否允许分段下载，分段下载失败后重新下载时不再分段
+     */
+    private DownloadResult realDownload(DownloadRequest request, boolean allowSegment) throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+
         // 打开连接
         HttpURLConnection connection;
         try {
@@ -158,14 +281,16 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "创建连接失败："+e.getMessage() + "；" + request.getName());
             throw e;
         }
+        request.setAborter(new HttpUrlConnectionAborter(connection));
         try {
             connection.connect();
         } catch (IOException e) {
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "打开连接失败："+e.getMessage() + "；" + request.getName());
             throw e;
         }
-        if (request.isCanceled()) {
-            releaseConnection(connection, request);
+        takeIdleConnection(connection);
+        if (request.isDownloadAborted()) {
+            disconnect(connection);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 打开连接之后" + "；" + request.getName());
             return null;
         }
@@ -175,20 +300,22 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         try {
             responseCode = connection.getResponseCode();
         } catch (IOException e) {
-            releaseConnection(connection, request);
+            disconnect(connection);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "获取状态码时发生异常" + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
             return null;
         }
+        long firstByteTime = SystemClock.elapsedRealtime() - startTime;
         String responseMessage;
         try {
             responseMessage = connection.getResponseMessage();
         } catch (IOException e) {
-            releaseConnection(connection, request);
+            disconnect(connection);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "获取状态消息时发生异常" + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
             return null;
         }
         if (responseCode != 200) {
-            releaseConnection(connection, request);
+            releaseConnection(connection, responseCode, request);
+            request.getSpear().getConfiguration().getFailedUriCache().put(request.getUri());
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "状态码异常："+responseCode+" "+responseMessage + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
             return null;
         }
@@ -196,46 +323,77 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         // 检查内容长度
         int contentLength = connection.getHeaderFieldInt("Content-Length", -1);
         if (contentLength <= 0) {
-            releaseConnection(connection, request);
+            releaseConnection(connection, responseCode, request);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "内容长度异常："+contentLength + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
             return null;
         }
 
-        return readData(request, connection, contentLength);
+        DownloadResult result = readData(request, connection, contentLength, allowSegment);
+        if(result != null){
+            result.setImageFormat(ImageFormat.valueOfMimeType(connection.getContentType()));
+            result.setFirstByteTime(firstByteTime);
+        }
+        return result;
     }
 
-    private DownloadResult readData(DownloadRequest request, HttpURLConnection connection, int contentLength) throws IOException {
+    private DownloadResult readData(DownloadRequest request, HttpURLConnection connection, int contentLength, boolean allowSegment) throws IOException {
         File tempFile = null;
         if(request.getCacheFile() != null && request.getSpear().getConfiguration().getDiskCache().applyForSpace(contentLength)){
             tempFile = new File(request.getCacheFile().getPath()+".temp");
-            if(!createFile(tempFile)){
+            if(!DownloadUtils.createFile(tempFile)){
                 tempFile = null;
             }
         }
 
+        // 大文件分段下载，只有写入磁盘缓存时才支持，没有验证器的话无法保证各段来自同一个版本
+        String rangeValidator = getRangeValidator(connection);
+        if(allowSegment && tempFile != null && segmentCount > 1 && contentLength >= segmentMinContentLength && rangeValidator != null
+                && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))){
+            int extraCount = acquireSegmentConnections(request, segmentCount - 1);
+            if(extraCount > 0){
+                return segmentedDownload(request, connection, tempFile, contentLength, extraCount + 1, rangeValidator);
+            }
+        }
+
         // 获取输入流
         InputStream inputStream;
         try {
             inputStream = connection.getInputStream();
         } catch (IOException e) {
+            disconnect(connection);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "获取输入流时发生异常：" + e.getMessage() + "；" + request.getName() + "；HttpResponseHeader=" + getResponseHeadersString(connection));
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取输入流时发生异常，需要删除临时缓存文件，但删除失败：" + tempFile.getPath() + "；" + request.getName());
             throw e;
         }
-        if (request.isCanceled()) {
-            close(inputStream);
+        if (request.isDownloadAborted()) {
+            disconnect(connection);
+            DownloadUtils.close(inputStream);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 获取输入流之后" + "；" + request.getName());
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "获取输入流之后发现取消，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
             return null;
         }
 
+        // 流式下载，直接把输入流交给调用者，不在内存中缓存整个文件
+        if(tempFile == null && request.getStreamListener() != null){
+            DownloadResult result = DownloadUtils.streamData(inputStream, request, contentLength, progressCallbackNumber);
+            if(result != null && result.getLength() == contentLength){
+                DownloadUtils.close(inputStream);
+                putIdleConnection(connection);
+            }else{
+                disconnect(connection);
+                DownloadUtils.close(inputStream);
+            }
+            return result;
+        }
+
         // 当不需要将数据缓存到本地的时候就使用ByteArrayOutputStream来存储数据
         OutputStream outputStream;
         if(tempFile != null){
             try {
                 outputStream = new BufferedOutputStream(new FileOutputStream(tempFile, false), BUFFER_SIZE);
             } catch (FileNotFoundException e) {
-                close(inputStream);
+                disconnect(connection);
+                DownloadUtils.close(inputStream);
                 Log.w(Spear.TAG, NAME + "：" + "创建输出流时找不到文件了："+tempFile.getPath() + "；" + request.getName());
                 throw e;
             }
@@ -247,24 +405,29 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         int completedLength = 0;
         boolean exception = false;
         try {
-            completedLength = readData(inputStream, outputStream, request, contentLength, progressCallbackNumber);
+            completedLength = DownloadUtils.readData(inputStream, outputStream, request, contentLength, progressCallbackNumber);
         } catch (IOException e) {
             exception = true;
+            disconnect(connection);
             if (Spear.isDebugMode()){
                 Log.w(Spear.TAG, NAME + "：" + "读取数据时发生异常："+e.getMessage() + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
             }
             throw e;
         }finally {
-            close(outputStream);
-            close(inputStream);
+            DownloadUtils.close(outputStream);
+            DownloadUtils.close(inputStream);
             if (exception && tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取数据时发生异常，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
         }
-        if (request.isCanceled()) {
+        if (request.isDownloadAborted()) {
+            disconnect(connection);
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 读取完数据之后" + "；" + request.getName());
             if (tempFile != null && tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "读取完数据之后发现取消了，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
             return null;
         }
 
+        // 数据已经读完并关闭了输入流，连接会被放回系统连接池
+        putIdleConnection(connection);
+
         if (Spear.isDebugMode()) Log.i(Spear.TAG, NAME + "：" + "下载成功" + "；" + "文件长度：" + completedLength + "/" + contentLength + "；" + request.getName()+"；HttpResponseHeader="+getResponseHeadersString(connection));
 
         // 转换结果
@@ -282,77 +445,180 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         }
     }
 
-    public static void close(Closeable closeable){
-        if(closeable == null){
-            return;
+    /**
+     * 分段下载，第一段直接使用已经打开的连接，其它的段带上If-Range用Range请求在单独的线程中下载，全部完成后再重命名成缓存文件
+     * <br>任何一段失败（包括服务器实际上不支持Range请求、资源已经变了）都会中止其它的段，然后用新的连接重新普通下载
+     * @param segmentCount 分段数，除了第一段之外的连接已经通过acquireSegmentConnections()申请过了
+     * @param rangeValidator 第一个响应的ETag或Last-Modified
+     */
+    private DownloadResult segmentedDownload(DownloadRequest request, HttpURLConnection firstConnection, File tempFile, int contentLength, int segmentCount, String rangeValidator) throws IOException {
+        // 预先分配文件大小，每一段各自写入自己的区间
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(tempFile, "rw");
+            randomAccessFile.setLength(contentLength);
+        } catch (IOException e) {
+            disconnect(firstConnection);
+            for(int index = 1; index < segmentCount; index++){
+                releaseSegmentConnection();
+            }
+            if (!tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "分配临时缓存文件失败，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
+            throw e;
+        } finally {
+            DownloadUtils.close(randomAccessFile);
         }
 
-        if(closeable instanceof OutputStream){
-            try {
-                ((OutputStream) closeable).flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        int segmentLength = (contentLength + segmentCount - 1) / segmentCount;
+        SegmentGroup segmentGroup = new SegmentGroup(request, tempFile, contentLength, segmentCount, rangeValidator);
+        for(int index = segmentGroup.getSegmentCount(); index < segmentCount; index++){
+            // 取整之后实际的段数可能少一些，多申请的连接还回去
+            releaseSegmentConnection();
+        }
+        request.setAborter(segmentGroup);
+        for(int start = segmentLength; start < contentLength; start += segmentLength){
+            getSegmentExecutor().execute(new SegmentTask(segmentGroup, null, start, Math.min(start + segmentLength, contentLength) - 1));
         }
+        new SegmentTask(segmentGroup, firstConnection, 0, segmentLength - 1).run();
 
         try {
-            closeable.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            segmentGroup.await();
+        } catch (InterruptedException e) {
+            segmentGroup.abort();
+            Thread.currentThread().interrupt();
+        }
+
+        if (request.isDownloadAborted()) {
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "已取消下载 - 分段下载" + "；" + request.getName());
+            if (tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "分段下载时发现取消了，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
+            return null;
+        }
+
+        if(!segmentGroup.isSucceeded()){
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "分段下载失败，改为普通下载" + "；" + request.getName());
+            if (tempFile.exists() && !tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "分段下载失败，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
+
+            // 资源可能已经变了，重新走一遍完整的下载流程，内容长度以新的响应为准
+            return realDownload(request, false);
+        }
+
+        if (Spear.isDebugMode()) Log.i(Spear.TAG, NAME + "：" + "分段下载成功" + "；" + "分段数：" + segmentGroup.getSegmentCount() + "；" + "文件长度：" + contentLength + "；" + request.getName());
+
+        if(tempFile.renameTo(request.getCacheFile())){
+            return DownloadResult.createByFile(request.getCacheFile(), true);
+        }else{
+            if (!tempFile.delete()) Log.w(Spear.TAG, NAME + "：" + "重命名失败，需要删除临时缓存文件，但删除失败："+tempFile.getPath() + "；" + request.getName());
+            return null;
         }
     }
 
-    public static void releaseConnection(HttpURLConnection connection, DownloadRequest request){
+    /**
+     * 释放连接，读完并丢弃剩余的响应体，这样连接才能被放回系统连接池供下次复用；已取消或者响应体太大就直接断开
+     */
+    private void releaseConnection(HttpURLConnection connection, int responseCode, DownloadRequest request){
         if(connection == null){
             return;
         }
 
+        if(request.isDownloadAborted() || connection.getContentLength() > MAX_DRAIN_LENGTH){
+            disconnect(connection);
+            return;
+        }
+
+        // 状态码大于等于400时getInputStream()会抛异常，响应体在getErrorStream()中
         InputStream inputStream;
         try {
-            inputStream = connection.getInputStream();
+            inputStream = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
         } catch (IOException e) {
             if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "："+e.getClass().getName()+"：" + "释放连接时获取输入流失败："+e.getMessage() + "；" + request.getName());
+            disconnect(connection);
+            return;
+        }
+        if(inputStream == null){
+            // 没有响应体，连接已经可以复用了
+            putIdleConnection(connection);
             return;
         }
-        close(inputStream);
-    }
 
-    public static int readData(InputStream inputStream, OutputStream outputStream, DownloadRequest downloadRequest, int contentLength, int progressCallbackAccuracy) throws IOException {
-        int readNumber;
-        int completedLength = 0;
-        int averageLength = contentLength/progressCallbackAccuracy;
-        int callbackNumber = 0;
-        byte[] cacheBytes = new byte[4*1024];
-        while(!downloadRequest.isCanceled() && (readNumber = inputStream.read(cacheBytes)) != -1){
-            outputStream.write(cacheBytes, 0, readNumber);
-            completedLength += readNumber;
-            if(completedLength >= (callbackNumber+1)*averageLength || completedLength == contentLength){
-                callbackNumber++;
-                downloadRequest.handleUpdateProgress(contentLength, completedLength);
+        boolean drained = false;
+        try {
+            byte[] buffer = new byte[4*1024];
+            int drainedLength = 0;
+            int readNumber;
+            while(drainedLength <= MAX_DRAIN_LENGTH && (readNumber = inputStream.read(buffer)) != -1){
+                drainedLength += readNumber;
             }
+            drained = drainedLength <= MAX_DRAIN_LENGTH;
+        } catch (IOException e) {
+            if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "："+e.getClass().getName()+"：" + "释放连接时读取响应体失败："+e.getMessage() + "；" + request.getName());
+        }
+        if(drained){
+            DownloadUtils.close(inputStream);
+            putIdleConnection(connection);
+        }else{
+            disconnect(connection);
+            DownloadUtils.close(inputStream);
         }
-        outputStream.flush();
-        return completedLength;
     }
 
-    public static boolean createFile(File file){
-        if(file.exists()){
-           return true;
-        }
+    /**
+     * 断开连接，不再复用
+     */
+    private void disconnect(HttpURLConnection connection){
+        connection.disconnect();
+        connectionStats.onDiscarded();
+    }
 
-        File parentDir = file.getParentFile();
-        if(!parentDir.exists() && !parentDir.mkdirs()){
-            return false;
+    /**
+     * 记录一个放回系统连接池的连接
+     */
+    private void putIdleConnection(HttpURLConnection connection){
+        connectionStats.onKeptAlive();
+        String address = getAddress(connection);
+        synchronized (idleConnections){
+            LinkedList<Long> idleTimes = idleConnections.get(address);
+            if(idleTimes == null){
+                idleTimes = new LinkedList<Long>();
+                idleConnections.put(address, idleTimes);
+            }
+            idleTimes.addLast(SystemClock.elapsedRealtime());
+            while(idleTimes.size() > MAX_IDLE_CONNECTIONS){
+                idleTimes.removeFirst();
+            }
         }
-        try {
-            if(!file.createNewFile()){
-                return false;
+    }
+
+    /**
+     * HttpURLConnection无法直接知道连接是否被复用，这里根据同一地址是否有还没过期的空闲连接来估算，所以统计是估算的
+     */
+    private void takeIdleConnection(HttpURLConnection connection){
+        String address = getAddress(connection);
+        boolean reused = false;
+        synchronized (idleConnections){
+            LinkedList<Long> idleTimes = idleConnections.get(address);
+            if(idleTimes != null){
+                long now = SystemClock.elapsedRealtime();
+                Long idleTime;
+                while((idleTime = idleTimes.pollLast()) != null){
+                    if(now - idleTime < KEEP_ALIVE_DURATION){
+                        reused = true;
+                        break;
+                    }
+                }
+                if(idleTimes.isEmpty()){
+                    idleConnections.remove(address);
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
         }
-        return true;
+        if(reused){
+            connectionStats.onReused();
+        }else{
+            connectionStats.onOpened();
+        }
+    }
+
+    private static String getAddress(HttpURLConnection connection){
+        URL url = connection.getURL();
+        return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
     }
 
     public static String getResponseHeadersString(HttpURLConnection urlConnection){
@@ -387,4 +653,177 @@ public class HttpUrlConnectionImageDownloader implements ImageDownloader {
         stringBuilder.append("]");
         return stringBuilder.toString();
     }
+
+    /**
+     * 通过断开HttpURLConnection来中止下载，阻塞中的连接或读取会立即抛出异常
+     */
+    private static class HttpUrlConnectionAborter implements Aborter {
+        private HttpURLConnection connection;
+
+        public HttpUrlConnectionAborter(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void abort() {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 一组分段，负责汇总进度、等待全部完成，失败或取消时断开所有分段的连接
+     */
+    private class SegmentGroup implements Aborter {
+        private DownloadRequest request;
+        private File tempFile;
+        private int contentLength;
+        private int segmentCount;
+        private String rangeValidator;
+        private CountDownLatch latch;
+        private List<HttpURLConnection> connections;
+        private volatile boolean failed;
+        private int completedLength;
+        private DownloadUtils.ProgressThrottle progressThrottle;
+
+        public SegmentGroup(DownloadRequest request, File tempFile, int contentLength, int segmentCount, String rangeValidator) {
+            this.request = request;
+            this.tempFile = tempFile;
+            this.contentLength = contentLength;
+            this.rangeValidator = rangeValidator;
+            int segmentLength = (contentLength + segmentCount - 1) / segmentCount;
+            this.segmentCount = (contentLength + segmentLength - 1) / segmentLength;
+            this.latch = new CountDownLatch(this.segmentCount);
+            this.progressThrottle = new DownloadUtils.ProgressThrottle(contentLength, progressCallbackNumber);
+            this.connections = new ArrayList<HttpURLConnection>(this.segmentCount);
+        }
+
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+
+        public boolean isStopped(){
+            return failed || request.isDownloadAborted();
+        }
+
+        public boolean isSucceeded(){
+            return !failed && completedLength == contentLength;
+        }
+
+        public void await() throws InterruptedException {
+            latch.await();
+        }
+
+        public void addConnection(HttpURLConnection connection){
+            synchronized (connections){
+                connections.add(connection);
+            }
+            if(isStopped()){
+                connection.disconnect();
+            }
+        }
+
+        public synchronized void onRead(int length){
+            completedLength += length;
+            request.setDownloadedLength(contentLength, completedLength);
+            if(progressThrottle.shouldCallback(completedLength) && !request.isCanceled()){
+                request.handleUpdateProgress(contentLength, completedLength);
+            }
+        }
+
+        public void onSegmentFinished(boolean success){
+            if(!success && !failed){
+                failed = true;
+                abort();
+            }
+            latch.countDown();
+        }
+
+        @Override
+        public void abort() {
+            synchronized (connections){
+                for(HttpURLConnection connection : connections){
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+
+    /**
+     * 下载一个区间的数据并写入临时文件的对应位置
+     */
+    private class SegmentTask implements Runnable {
+        private SegmentGroup segmentGroup;
+        private HttpURLConnection connection;   // 不为null时表示使用已经打开的连接，从头开始读取
+        private int start;
+        private int end;
+
+        public SegmentTask(SegmentGroup segmentGroup, HttpURLConnection connection, int start, int end) {
+            this.segmentGroup = segmentGroup;
+            this.connection = connection;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            DownloadRequest request = segmentGroup.request;
+            boolean firstSegment = connection != null;
+            boolean success = false;
+            InputStream inputStream = null;
+            RandomAccessFile outputFile = null;
+            try {
+                if(firstSegment){
+                    segmentGroup.addConnection(connection);
+                }else{
+                    connection = openUrlConnection(request.getUri());
+                    connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                    connection.setRequestProperty("If-Range", segmentGroup.rangeValidator);
+                    segmentGroup.addConnection(connection);
+                    connection.connect();
+                    takeIdleConnection(connection);
+
+                    // 服务器声明了支持Range请求，但实际返回的不是指定的区间，或者资源已经变了（If-Range不匹配时返回200）、总长度对不上
+                    String contentRange = connection.getHeaderField("Content-Range");
+                    if(connection.getResponseCode() != 206 || contentRange == null || !contentRange.equals("bytes " + start + "-" + end + "/" + segmentGroup.contentLength)){
+                        if (Spear.isDebugMode()) Log.w(Spear.TAG, NAME + "：" + "服务器不支持Range请求：" + connection.getResponseCode() + " " + contentRange + "；" + request.getName());
+                        return;
+                    }
+                }
+
+                inputStream = connection.getInputStream();
+                outputFile = new RandomAccessFile(segmentGroup.tempFile, "rw");
+                outputFile.seek(start);
+
+                RateLimiter rateLimiter = request.getSpear().getConfiguration().getRateLimiter();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int remainingLength = end - start + 1;
+                int readNumber;
+                while(remainingLength > 0 && !segmentGroup.isStopped() && (readNumber = inputStream.read(buffer, 0, Math.min(buffer.length, remainingLength))) != -1){
+                    outputFile.write(buffer, 0, readNumber);
+                    remainingLength -= readNumber;
+                    segmentGroup.onRead(readNumber);
+                    rateLimiter.acquire(request, readNumber);
+                }
+                success = remainingLength == 0;
+            } catch (IOException e) {
+                if (Spear.isDebugMode() && !segmentGroup.isStopped()) Log.w(Spear.TAG, NAME + "：" + "分段下载异常：" + start + "-" + end + "；" + e.getMessage() + "；" + request.getName());
+            } finally {
+                DownloadUtils.close(outputFile);
+                if(connection != null){
+                    // 第一段的连接后面还有数据没读，只能断开；其它段读完了可以放回连接池
+                    if(success && !firstSegment){
+                        DownloadUtils.close(inputStream);
+                        putIdleConnection(connection);
+                    }else{
+                        disconnect(connection);
+                        DownloadUtils.close(inputStream);
+                    }
+                }
+                if(!firstSegment){
+                    releaseSegmentConnection();
+                }
+                segmentGroup.onSegmentFinished(success);
+            }
+        }
+    }
 }
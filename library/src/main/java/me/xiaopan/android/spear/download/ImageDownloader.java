@@ -19,6 +19,7 @@ package me.xiaopan.android.spear.download;
 import java.io.File;
 
 import me.xiaopan.android.spear.request.DownloadRequest;
+import me.xiaopan.android.spear.util.ImageFormat;
 
 /**
  * 下载器
@@ -43,16 +44,38 @@ public interface ImageDownloader {
 
     /**
      * 设置进度回调次数
-     * @param progressCallbackNumber 进度回调次数，默认为10，意思是整个下载过程中进度回调10次，例如第一次是10%，第二次是20%，以此类推
+     * @param progressCallbackNumber 进度回调次数，默认为10，意思是整个下载过程中进度回调10次，例如第一次是10%，第二次是20%，以此类推；
+     *                               下载慢的时候每250毫秒也会回调一次，两次回调至少间隔16毫秒
      */
     public void setProgressCallbackNumber(int progressCallbackNumber);
 
+    /**
+     * 获取连接统计，可以用来观察新建连接和复用连接的数量
+     * @return 连接统计
+     */
+    public ConnectionStats getConnectionStats();
+
+    /**
+     * 下载中止器，取消请求时会调用abort()立即断开正在进行的网络连接，释放下载线程
+     */
+    public interface Aborter {
+        /**
+         * 中止下载
+         */
+        public void abort();
+    }
+
     /**
      * 下载结果
      */
     public static class DownloadResult {
         private Object result;
         private boolean fromNetwork;
+        private long downloadTime;  // 从网络下载耗时，单位毫秒
+        private long firstByteTime;  // 从发起请求到收到响应头的耗时（TTFB），单位毫秒
+        private ImageFormat imageFormat;    // 服务器返回的图片格式，来自Content-Type
+        private long length;    // 数据长度，单位字节
+        private boolean stream;    // 是否是流式下载的结果
 
         private DownloadResult(){
 
@@ -74,10 +97,61 @@ public interface ImageDownloader {
             this.fromNetwork = fromNetwork;
         }
 
+        public long getDownloadTime() {
+            return downloadTime;
+        }
+
+        public void setDownloadTime(long downloadTime) {
+            this.downloadTime = downloadTime;
+        }
+
+        public long getFirstByteTime() {
+            return firstByteTime;
+        }
+
+        public void setFirstByteTime(long firstByteTime) {
+            this.firstByteTime = firstByteTime;
+        }
+
+        public ImageFormat getImageFormat() {
+            return imageFormat;
+        }
+
+        public void setImageFormat(ImageFormat imageFormat) {
+            this.imageFormat = imageFormat;
+        }
+
+        /**
+         * 获取结果的数据长度
+         * @return 数据长度，单位字节
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 是否是流式下载的结果，流式下载的数据已经交给了DownloadStreamListener，没有result
+         */
+        public boolean isStream() {
+            return stream;
+        }
+
         public static DownloadResult createByFile(File resultFile, boolean fromNetwork){
             DownloadResult result = new DownloadResult();
             result.setResult(resultFile);
             result.setFromNetwork(fromNetwork);
+            result.length = resultFile.length();
+            return result;
+        }
+
+        /**
+         * 创建流式下载的结果，数据已经交给了DownloadStreamListener，这里只记录读取的长度
+         */
+        public static DownloadResult createByStream(int readLength, boolean fromNetwork){
+            DownloadResult result = new DownloadResult();
+            result.setFromNetwork(fromNetwork);
+            result.stream = true;
+            result.length = readLength;
             return result;
         }
 
@@ -85,6 +159,7 @@ public interface ImageDownloader {
             DownloadResult result = new DownloadResult();
             result.setResult(resultDate);
             result.setFromNetwork(fromNetwork);
+            result.length = resultDate.length;
             return result;
         }
     }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import me.xiaopan.android.spear.util.ImageSize;
+
+/**
+ * 网络策略，根据当前的网络状况（连接类型、是否计费以及实测的下载速度）来决定网络并发数、maxsize、URI以及是否允许预取
+ */
+public interface NetworkPolicy {
+    /**
+     * 获取当前网络状况
+     * @return 当前网络状况
+     */
+    public NetworkQuality getNetworkQuality();
+
+    /**
+     * 获取当前网络状况下的网络任务并发数上限，实际并发数由ConcurrencyController在此范围内调整
+     * @return 网络任务并发数上限
+     */
+    public int getNetConcurrency();
+
+    /**
+     * 根据当前网络状况调整maxsize，网络较慢的时候可以适当缩小maxsize
+     * @param maxsize 原始maxsize
+     * @return 调整后的maxsize
+     */
+    public ImageSize adjustMaxsize(ImageSize maxsize);
+
+    /**
+     * 根据当前网络状况选择URI，例如在网络较慢的时候选择服务器提供的小图地址，默认返回原始URI
+     * @param uri 原始URI
+     * @param maxsize 调整后的maxsize
+     * @return 实际要请求的URI
+     */
+    public String selectUri(String uri, ImageSize maxsize);
+
+    /**
+     * 是否允许预取，网络较慢或计费的时候不允许预取
+     * @return 是否允许预取
+     */
+    public boolean isPrefetchAllowed();
+
+    /**
+     * 下载完成，用来统计实际的下载速度
+     * @param length 下载的数据长度，单位字节
+     * @param time 传输耗时，不包括建立连接和等待首字节的时间，单位毫秒
+     */
+    public void onDownloadCompleted(long length, long time);
+
+    /**
+     * 网络状况
+     */
+    public enum NetworkQuality {
+        /**
+         * 没有网络
+         */
+        NONE,
+
+        /**
+         * 慢速网络，例如2G或实测速度很慢
+         */
+        SLOW,
+
+        /**
+         * 中速网络，例如3G
+         */
+        MEDIUM,
+
+        /**
+         * 快速网络，例如WIFI或4G
+         */
+        FAST,
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * 下载限速器，在下载器每次读取数据之后调用，用来限制后台和预取流量占用的带宽
+ */
+public interface RateLimiter {
+    /**
+     * 申请读取指定长度的数据，超过了限速就阻塞当前线程，下载被中止后立即返回
+     * @param request 下载请求
+     * @param length 刚刚读取的数据长度，单位字节
+     */
+    public void acquire(DownloadRequest request, int length);
+
+    /**
+     * 设置某种流量的速度上限
+     * @param trafficClass 流量类型
+     * @param bytesPerSecond 每秒最多下载的字节数，小于等于0表示不限速
+     */
+    public void setRate(TrafficClass trafficClass, int bytesPerSecond);
+}
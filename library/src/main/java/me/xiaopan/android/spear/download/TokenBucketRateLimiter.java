@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import android.os.SystemClock;
+
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * 令牌桶限速器，每种流量一个令牌桶，同一种流量的所有下载共享一个速度上限
+ * <br>令牌不够时先欠着，由欠账的线程睡眠补足，这样多个线程同时下载时总速度也不会超过上限
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+    private static final int DEFAULT_BACKGROUND_RATE = 256*1024; // 后台流量默认每秒256K
+    private static final int DEFAULT_PREFETCH_RATE = 64*1024;  // 预取流量默认每秒64K
+    private static final int MAX_SLEEP_TIME = 100;  // 每次最多睡眠100毫秒，醒来检查一下请求是否已取消
+
+    private Bucket[] buckets;
+
+    public TokenBucketRateLimiter() {
+        buckets = new Bucket[TrafficClass.values().length];
+        for(TrafficClass trafficClass : TrafficClass.values()){
+            buckets[trafficClass.ordinal()] = new Bucket();
+        }
+        setRate(TrafficClass.BACKGROUND, DEFAULT_BACKGROUND_RATE);
+        setRate(TrafficClass.PREFETCH, DEFAULT_PREFETCH_RATE);
+    }
+
+    @Override
+    public void acquire(DownloadRequest request, int length) {
+        TrafficClass trafficClass = request.getTrafficClass();
+        if(trafficClass == null || length <= 0){
+            return;
+        }
+
+        long waitTime = buckets[trafficClass.ordinal()].take(length, SystemClock.elapsedRealtime());
+        while(waitTime > 0 && !request.isDownloadAborted()){
+            long sleepTime = Math.min(waitTime, MAX_SLEEP_TIME);
+            try {
+                Thread.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            waitTime -= sleepTime;
+        }
+    }
+
+    @Override
+    public void setRate(TrafficClass trafficClass, int bytesPerSecond) {
+        if(trafficClass != null){
+            buckets[trafficClass.ordinal()].setRate(bytesPerSecond, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * 令牌桶，时间由调用方传入，方便测试
+     */
+    static class Bucket {
+        private int rate;   // 每秒产生的令牌数，也是桶的容量
+        private float tokens;
+        private long lastRefillTime;
+
+        /**
+         * @param now 当前时间，单位毫秒
+         */
+        synchronized void setRate(int rate, long now) {
+            this.rate = rate;
+            this.tokens = Math.max(rate, 0);
+            this.lastRefillTime = now;
+        }
+
+        /**
+         * 取走令牌
+         * @param now 当前时间，单位毫秒
+         * @return 需要等待的时间，单位毫秒
+         */
+        synchronized long take(int length, long now){
+            if(rate <= 0){
+                return 0;
+            }
+
+            tokens = Math.min(rate, tokens + (now - lastRefillTime) * rate / 1000f);
+            lastRefillTime = now;
+
+            tokens -= length;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1000 / rate);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+/**
+ * 流量类型，RateLimiter根据流量类型限制下载速度
+ */
+public enum TrafficClass {
+    /**
+     * 前台流量，例如display()和load()，需要尽快显示给用户，默认不限速
+     */
+    FOREGROUND,
+
+    /**
+     * 后台流量，例如download()和DownloadQueue
+     */
+    BACKGROUND,
+
+    /**
+     * 预取流量，通过DownloadHelper.prefetch()标记
+     */
+    PREFETCH,
+}
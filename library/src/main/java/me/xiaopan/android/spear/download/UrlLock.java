@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.xiaopan.android.spear.request.DownloadRequest;
+
+/**
+ * URL锁，记录当前持有锁的下载请求，前台请求等锁的时候会把持有者提升为前台流量，不会被后台限速拖住
+ */
+public class UrlLock extends ReentrantLock {
+    private volatile DownloadRequest holder;
+
+    /**
+     * 获取当前持有锁的下载请求
+     * @return null：没有人持有
+     */
+    public DownloadRequest getHolder() {
+        return holder;
+    }
+
+    /**
+     * 设置当前持有锁的下载请求，拿到锁之后调用
+     * @param holder 下载请求
+     */
+    public void setHolder(DownloadRequest holder) {
+        this.holder = holder;
+    }
+
+    /**
+     * 前台请求在等这个锁，把持有者提升为前台流量，取消限速
+     */
+    public void promoteHolder(){
+        DownloadRequest holder = this.holder;
+        if(holder != null && holder.getTrafficClass() != TrafficClass.FOREGROUND){
+            holder.setTrafficClass(TrafficClass.FOREGROUND);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        if(getHoldCount() == 1){
+            holder = null;
+        }
+        super.unlock();
+    }
+}
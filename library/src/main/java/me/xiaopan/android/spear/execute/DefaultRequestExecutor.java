@@ -51,6 +51,60 @@ public class DefaultRequestExecutor implements RequestExecutor {
         return netTaskExecutor;
     }
 
+    @Override
+    public boolean isIdle() {
+        return isIdle(taskDispatchExecutor) && isIdle(netTaskExecutor) && isIdle(localTaskExecutor);
+    }
+
+    /**
+     * 执行器是否空闲，只支持ThreadPoolExecutor，其它的执行器始终认为是空闲的
+     * @param executor 执行器
+     */
+    public static boolean isIdle(Executor executor){
+        if(!(executor instanceof ThreadPoolExecutor)){
+            return true;
+        }
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executor;
+        return threadPoolExecutor.getActiveCount() == 0 && threadPoolExecutor.getQueue().isEmpty();
+    }
+
+    /**
+     * 获取执行器中正在执行任务的线程数，只支持ThreadPoolExecutor
+     * @param executor 执行器
+     * @return 正在执行任务的线程数；-1：不支持
+     */
+    public static int getActiveCount(Executor executor){
+        if(!(executor instanceof ThreadPoolExecutor)){
+            return -1;
+        }
+        return ((ThreadPoolExecutor) executor).getActiveCount();
+    }
+
+    /**
+     * 调整线程池大小，只支持ThreadPoolExecutor
+     * @param executor 执行器
+     * @param poolSize 新的线程池大小
+     */
+    public static void setPoolSize(Executor executor, int poolSize){
+        if(!(executor instanceof ThreadPoolExecutor) || poolSize <= 0){
+            return;
+        }
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executor;
+        if(threadPoolExecutor.getCorePoolSize() == poolSize){
+            return;
+        }
+        // 核心线程数不能大于最大线程数，所以变大时先改最大线程数，变小时先改核心线程数
+        synchronized (threadPoolExecutor){
+            if(poolSize > threadPoolExecutor.getMaximumPoolSize()){
+                threadPoolExecutor.setMaximumPoolSize(poolSize);
+                threadPoolExecutor.setCorePoolSize(poolSize);
+            }else{
+                threadPoolExecutor.setCorePoolSize(poolSize);
+                threadPoolExecutor.setMaximumPoolSize(poolSize);
+            }
+        }
+    }
+
     public static class Builder{
         private Executor taskDispatchExecutor;	//任务调度执行器
         private Executor netTaskExecutor;	//网络任务执行器
@@ -60,7 +114,7 @@ public class DefaultRequestExecutor implements RequestExecutor {
             if(workQueue != null){
                 workQueue = new LinkedBlockingQueue<Runnable>(200);
             }
-            this.taskDispatchExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, workQueue, new ThreadPoolExecutor.DiscardOldestPolicy());
+            this.taskDispatchExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, workQueue, new NotifyDiscardOldestPolicy());
             return this;
         }
 
@@ -71,7 +125,7 @@ public class DefaultRequestExecutor implements RequestExecutor {
             if(workQueue == null){
                 workQueue = new LinkedBlockingQueue<Runnable>(200);
             }
-            this.netTaskExecutor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, 60, TimeUnit.SECONDS, workQueue, new ThreadPoolExecutor.DiscardOldestPolicy());
+            this.netTaskExecutor = new ThreadPoolExecutor(maxPoolSize, maxPoolSize, 60, TimeUnit.SECONDS, workQueue, new NotifyDiscardOldestPolicy());
             return this;
         }
 
@@ -79,19 +133,19 @@ public class DefaultRequestExecutor implements RequestExecutor {
             if(workQueue == null){
                 workQueue = new LinkedBlockingQueue<Runnable>(200);
             }
-            this.localTaskExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, workQueue, new ThreadPoolExecutor.DiscardOldestPolicy());
+            this.localTaskExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, workQueue, new NotifyDiscardOldestPolicy());
             return this;
         }
 
         public DefaultRequestExecutor build(){
             if(taskDispatchExecutor == null){
-                taskDispatchExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new ThreadPoolExecutor.DiscardOldestPolicy());
+                taskDispatchExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new NotifyDiscardOldestPolicy());
             }
             if(netTaskExecutor == null){
-                netTaskExecutor = new ThreadPoolExecutor(5, 5, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new ThreadPoolExecutor.DiscardOldestPolicy());
+                netTaskExecutor = new ThreadPoolExecutor(5, 5, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new NotifyDiscardOldestPolicy());
             }
             if(localTaskExecutor == null){
-                localTaskExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new ThreadPoolExecutor.DiscardOldestPolicy());
+                localTaskExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(200), new NotifyDiscardOldestPolicy());
             }
             return new DefaultRequestExecutor(this);
         }
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.xiaopan.android.spear.execute;
+
+/**
+ * 可以知道自己被丢弃了的任务，线程池满了用NotifyDiscardOldestPolicy丢掉它时会回调onDiscarded()
+ */
+public interface DiscardableTask extends Runnable {
+    /**
+     * 任务还没执行就被线程池丢掉了
+     */
+    public void onDiscarded();
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.xiaopan.android.spear.execute;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 跟ThreadPoolExecutor.DiscardOldestPolicy一样，线程池满了就丢掉最老的任务，不同的是被丢掉的如果是DiscardableTask会通知它
+ */
+public class NotifyDiscardOldestPolicy implements RejectedExecutionHandler {
+
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        if(executor.isShutdown()){
+            notifyDiscarded(runnable);
+            return;
+        }
+        notifyDiscarded(executor.getQueue().poll());
+        executor.execute(runnable);
+    }
+
+    private static void notifyDiscarded(Runnable runnable){
+        if(runnable instanceof DiscardableTask){
+            ((DiscardableTask) runnable).onDiscarded();
+        }
+    }
+}
@@ -36,4 +36,9 @@ public interface RequestExecutor {
      * 获取网络任务执行器
      */
     public Executor getNetRequestExecutor();
+
+    /**
+     * 是否空闲，没有正在执行或等待执行的任务
+     */
+    public boolean isIdle();
 }
\ No newline at end of file
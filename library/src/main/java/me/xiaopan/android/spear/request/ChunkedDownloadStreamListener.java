@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 分块的流式下载监听器，把数据流切成固定大小的块依次回调，块对应的ByteBuffer会被复用，回调返回后就不要再持有了
+ */
+public abstract class ChunkedDownloadStreamListener implements DownloadStreamListener {
+    private static final int DEFAULT_CHUNK_SIZE = 8*1024;
+
+    private int chunkSize;
+
+    public ChunkedDownloadStreamListener() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize 块大小，单位字节，默认8K
+     */
+    public ChunkedDownloadStreamListener(int chunkSize) {
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    }
+
+    @Override
+    public void onStream(InputStream inputStream, int contentLength) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        byte[] buffer = chunk.array();
+        int readNumber;
+        while((readNumber = inputStream.read(buffer, 0, buffer.length)) != -1){
+            chunk.clear();
+            chunk.limit(readNumber);
+            onChunk(chunk);
+        }
+    }
+
+    /**
+     * 收到一块数据，在下载线程中执行，方法返回前不会继续下载
+     * @param chunk 数据块，position到limit之间是有效数据
+     * @throws IOException 抛出异常会被当作下载失败
+     */
+    public abstract void onChunk(ByteBuffer chunk) throws IOException;
+}
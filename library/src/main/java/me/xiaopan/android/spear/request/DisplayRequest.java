@@ -25,7 +25,6 @@ import me.xiaopan.android.spear.Spear;
 import me.xiaopan.android.spear.display.ImageDisplayer;
 import me.xiaopan.android.spear.process.ImageProcessor;
 import me.xiaopan.android.spear.util.DrawableHolder;
-import me.xiaopan.android.spear.util.FailureCause;
 import me.xiaopan.android.spear.util.ImageViewHolder;
 import me.xiaopan.android.spear.util.RecyclingBitmapDrawable;
 
@@ -45,10 +44,11 @@ public class DisplayRequest extends LoadRequest{
 
     /* 辅助的属性 */
     private boolean resizeByImageViewLayoutSizeAndFromDisplayer;
-    private FailureCause failureCause;
     private ImageViewHolder imageViewHolder;	//ImageView持有器
     private BitmapDrawable resultBitmap;
     private ImageFrom imageFrom;
+    private String variantKey;  // 同一张图片的不同尺寸共用的KEY
+    private BitmapDrawable variantDrawable;    // 内存中同一张图片更大的尺寸，有的话直接缩小，不用再解码
 
     /**
      * 获取请求ID
@@ -82,6 +82,14 @@ public class DisplayRequest extends LoadRequest{
         this.imageViewHolder = imageViewHolder;
     }
 
+    /**
+     * 是否开启内存缓存
+     * @return 是否开启内存缓存
+     */
+    public boolean isEnableMemoryCache() {
+        return enableMemoryCache;
+    }
+
     /**
      * 设置是否开启内存缓存（默认开启）
      * @param enableMemoryCache 是否开启内存缓存
@@ -165,22 +173,6 @@ public class DisplayRequest extends LoadRequest{
         this.resultBitmap = resultBitmap;
     }
 
-    /**
-     * 获取失败原因
-     * @return 失败原因
-     */
-    public FailureCause getFailureCause() {
-        return failureCause;
-    }
-
-    /**
-     * 设置失败原因
-     * @param failureCause 失败原因
-     */
-    public void setFailureCause(FailureCause failureCause) {
-        this.failureCause = failureCause;
-    }
-
     /**
      * 获取结果图片来源
      * @return 结果图片来源
@@ -194,9 +186,26 @@ public class DisplayRequest extends LoadRequest{
      * @param imageFrom 结果图片来源
      */
     public void setImageFrom(ImageFrom imageFrom) {
+        super.setImageFrom(imageFrom);
         this.imageFrom = imageFrom;
     }
 
+    /**
+     * 设置同一张图片的不同尺寸共用的KEY，没有经过处理的结果会用它登记到内存缓存中
+     * @param variantKey 同一张图片的不同尺寸共用的KEY
+     */
+    public void setVariantKey(String variantKey) {
+        this.variantKey = variantKey;
+    }
+
+    /**
+     * 设置内存中同一张图片更大的尺寸，加载时直接缩小它，不再读取和解码；加载开始时才占用它，请求被取消或丢弃不会让它一直无法回收
+     * @param variantDrawable 内存中同一张图片更大的尺寸
+     */
+    public void setVariantDrawable(BitmapDrawable variantDrawable) {
+        this.variantDrawable = variantDrawable;
+    }
+
     /**
      * 设置resize是否来自ImageView的LayoutSize并且来自Displayer
      * @param resizeByImageViewLayoutSizeAndFromDisplayer resize是否来自ImageView的LayoutSize并且来自Displayer
@@ -217,6 +226,71 @@ public class DisplayRequest extends LoadRequest{
         return isCanceled;
     }
 
+    @Override
+    public void executeLoad() {
+        if(variantDrawable == null){
+            super.executeLoad();
+            return;
+        }
+
+        // 先占用再检查，占用之后就不会再被回收了
+        if(variantDrawable instanceof RecyclingBitmapDrawable){
+            ((RecyclingBitmapDrawable) variantDrawable).setIsDisplayed(true);
+        }
+        try{
+            // 已经被回收了，只能走正常流程
+            if(variantDrawable.getBitmap() == null || variantDrawable.getBitmap().isRecycled()){
+                releaseVariantDrawable();
+                runDispatch();
+                return;
+            }
+            super.executeLoad();
+        }finally{
+            releaseVariantDrawable();
+        }
+    }
+
+    @Override
+    protected Bitmap decode() {
+        if(variantDrawable == null){
+            return super.decode();
+        }
+
+        Bitmap source = variantDrawable.getBitmap();
+        if(source == null || source.isRecycled()){
+            return null;
+        }
+
+        // 缩小到刚好盖住maxsize
+        float scale = 1f;
+        if(getMaxsize() != null){
+            scale = Math.max((float) getMaxsize().getWidth()/source.getWidth(), (float) getMaxsize().getHeight()/source.getHeight());
+            scale = Math.min(scale, 1f);
+        }
+        int width = Math.max(Math.round(source.getWidth() * scale), 1);
+        int height = Math.max(Math.round(source.getHeight() * scale), 1);
+        Bitmap bitmap = Bitmap.createScaledBitmap(source, width, height, true);
+
+        // 尺寸一样时返回的是原图，内存缓存里的图片不能被处理器回收，所以复制一份
+        if(bitmap == source){
+            bitmap = source.copy(source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888, false);
+        }
+        if(Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "LOAD - 内存中的大图缩小" + "；" + source.getWidth() + "x" + source.getHeight() + " -> " + width + "x" + height + "；" + name);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 释放内存中同一张图片更大的尺寸
+     */
+    private void releaseVariantDrawable(){
+        if(variantDrawable instanceof RecyclingBitmapDrawable){
+            ((RecyclingBitmapDrawable) variantDrawable).setIsDisplayed(false);
+        }
+        variantDrawable = null;
+    }
+
     @Override
     public void handleUpdateProgress(int totalLength, int completedLength) {
         if(progressListener != null){
@@ -233,11 +307,17 @@ public class DisplayRequest extends LoadRequest{
         } else {
             bitmapDrawable = new RecyclingBitmapDrawable(spear.getConfiguration().getContext().getResources(), bitmap);
         }
-        if(enableMemoryCache){
+        // 因为网络状况降低了质量的不放进内存缓存，网络好了或者有缓存文件的时候还能拿到正常的
+        if(enableMemoryCache && !isDegraded()){
             if(bitmapDrawable instanceof RecyclingBitmapDrawable){
                 ((RecyclingBitmapDrawable) bitmapDrawable).setIsCached(true);
             }
             spear.getConfiguration().getMemoryCache().put(id, bitmapDrawable);
+
+            // 没有经过处理的可以给同一张图片的更小尺寸用
+            if(variantKey != null && getImageProcessor() == null && getResize() == null){
+                spear.getConfiguration().getMemoryCache().putVariant(variantKey, id);
+            }
         }
 
         // 已取消
@@ -261,6 +341,6 @@ public class DisplayRequest extends LoadRequest{
 
     @Override
     public void handleFail() {
-        spear.getConfiguration().getDisplayCallbackHandler().failCallback(this, getLoadFailDrawable(), null);
+        spear.getConfiguration().getDisplayCallbackHandler().failCallback(this, getLoadFailDrawable(), getFailureCause());
     }
 }
\ No newline at end of file
@@ -19,9 +19,21 @@ package me.xiaopan.android.spear.request;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import me.xiaopan.android.spear.Configuration;
 import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.cache.DiskCacheDeduplicator;
+import me.xiaopan.android.spear.cache.DiskCacheTranscoder;
+import me.xiaopan.android.spear.cache.PackedDiskCache;
+import me.xiaopan.android.spear.download.DownloadUtils;
 import me.xiaopan.android.spear.download.ImageDownloader;
+import me.xiaopan.android.spear.download.TrafficClass;
+import me.xiaopan.android.spear.execute.DefaultRequestExecutor;
+import me.xiaopan.android.spear.util.FailureCause;
 import me.xiaopan.android.spear.util.ImageScheme;
 
 /**
@@ -30,22 +42,48 @@ import me.xiaopan.android.spear.util.ImageScheme;
 public class DownloadRequest implements Request{
     public static final boolean DEFAULT_ENABLE_DISK_CACHE = true;
     private static final String NAME = "DownloadRequest";
+    private static volatile Executor resizedExecutor;  // 上次调整过线程数的网络线程池，并发数没变就不用再调整
+    private static volatile int resizedPoolSize;  // 上次调整成的线程数
 
     /* 通用属性 */
     protected Spear spear;
     private Status status = Status.WAIT_DISPATCH;  // 状态
     protected String uri;	// 图片地址
+    private String cacheKey;    // 缓存KEY
     protected String name;	// 名称，用于在输出LOG的时候区分不同的请求
     protected RunStatus runStatus = RunStatus.DISPATCH;    // 运行状态，用于在执行run方法时知道该干什么
+    private FailureCause failureCause;  // 失败原因
 
     protected ImageScheme imageScheme;	// Uri协议格式
 
     /* 下载用到的属性 */
     protected File cacheFile;	// 缓存文件
     protected boolean enableDiskCache = DEFAULT_ENABLE_DISK_CACHE;	// 是否开启磁盘缓存
+    protected volatile TrafficClass trafficClass = TrafficClass.BACKGROUND;	// 流量类型，用于限速
 
     private DownloadListener downloadListener;  // 下载监听器
+    private DownloadStreamListener streamListener;  // 流式下载监听器
     protected ProgressListener progressListener;  // 下载进度监听器
+    private volatile ImageDownloader.Aborter aborter;  // 下载中止器，用于在取消时立即断开网络连接
+    private volatile boolean finishInBackground;  // 取消时已经快下载完了，继续在后台下载到磁盘缓存
+    private volatile int contentLength;  // 内容长度
+    private volatile int downloadedLength;  // 已下载长度
+
+    /**
+     * 获取失败原因
+     * @return 失败原因
+     */
+    public FailureCause getFailureCause() {
+        return failureCause;
+    }
+
+    /**
+     * 设置失败原因
+     * @param failureCause 失败原因
+     */
+    public void setFailureCause(FailureCause failureCause) {
+        this.failureCause = failureCause;
+    }
 
     @Override
     public Spear getSpear() {
@@ -65,6 +103,18 @@ public class DownloadRequest implements Request{
     @Override
     public void setUri(String uri) {
         this.uri = uri;
+        this.cacheKey = null;
+    }
+
+    /**
+     * 获取缓存KEY，由CacheKeyFactory根据URI生成，磁盘缓存、内存缓存以及下载去重都用它
+     * @return 缓存KEY
+     */
+    public String getCacheKey() {
+        if(cacheKey == null){
+            cacheKey = spear.getConfiguration().getCacheKeyFactory().createCacheKey(uri);
+        }
+        return cacheKey;
     }
 
     @Override
@@ -108,6 +158,22 @@ public class DownloadRequest implements Request{
         this.enableDiskCache = enableDiskCache;
     }
 
+    /**
+     * 获取流量类型
+     * @return 流量类型
+     */
+    public TrafficClass getTrafficClass() {
+        return trafficClass;
+    }
+
+    /**
+     * 设置流量类型，RateLimiter会根据流量类型限制下载速度
+     * @param trafficClass 流量类型
+     */
+    public void setTrafficClass(TrafficClass trafficClass) {
+        this.trafficClass = trafficClass;
+    }
+
     /**
      * 获取进度监听器哦
      * @return 进度监听器哦
@@ -132,6 +198,22 @@ public class DownloadRequest implements Request{
         this.downloadListener = downloadListener;
     }
 
+    /**
+     * 获取流式下载监听器
+     * @return 流式下载监听器，不为null时下载器会把输入流直接交给它而不是在内存中缓存整个文件
+     */
+    public DownloadStreamListener getStreamListener() {
+        return streamListener;
+    }
+
+    /**
+     * 设置流式下载监听器
+     * @param streamListener 流式下载监听器
+     */
+    public void setStreamListener(DownloadStreamListener streamListener) {
+        this.streamListener = streamListener;
+    }
+
     @Override
     public boolean isFinished() {
         return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELED;
@@ -142,12 +224,55 @@ public class DownloadRequest implements Request{
         return status == Status.CANCELED;
     }
 
+    /**
+     * 下载是否已中止，下载器应该用这个方法而不是isCanceled()来判断是否继续下载
+     * <br>请求取消时如果已经快下载完了就不中止下载，而是继续在后台下载到磁盘缓存，下次显示时就不用重新下载了
+     * @return true：已取消并且不需要在后台继续下载
+     */
+    public boolean isDownloadAborted() {
+        return isCanceled() && !finishInBackground;
+    }
+
+    /**
+     * 更新已下载长度，下载器每次读取数据后调用，用于在取消时判断是否要继续在后台下载
+     * @param contentLength 内容长度
+     * @param downloadedLength 已下载长度
+     */
+    public void setDownloadedLength(int contentLength, int downloadedLength) {
+        this.contentLength = contentLength;
+        this.downloadedLength = downloadedLength;
+    }
+
+    /**
+     * 设置下载中止器，下载器在建立连接后设置，下载结束后置为null。如果请求已经取消了会立即中止
+     * @param aborter 下载中止器
+     */
+    public void setAborter(ImageDownloader.Aborter aborter) {
+        this.aborter = aborter;
+        if(aborter != null && status == Status.CANCELED && !finishInBackground){
+            aborter.abort();
+        }
+    }
+
     @Override
     public boolean cancel() {
         if(isFinished()){
             return false;
         }
         toCanceledStatus();
+
+        // 如果还在排队就从队列中移除，避免占用队列位置
+        Executor executor;
+        if(runStatus == RunStatus.DOWNLOAD){
+            executor = spear.getConfiguration().getRequestExecutor().getNetRequestExecutor();
+        }else if(runStatus == RunStatus.LOAD){
+            executor = spear.getConfiguration().getRequestExecutor().getLocalRequestExecutor();
+        }else{
+            executor = spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor();
+        }
+        if(executor instanceof ThreadPoolExecutor){
+            ((ThreadPoolExecutor) executor).remove(this);
+        }
         return true;
     }
 
@@ -169,7 +294,31 @@ public class DownloadRequest implements Request{
     @Override
     public void dispatch() {
         // 要先创建缓存文件
-        this.cacheFile = enableDiskCache?spear.getConfiguration().getDiskCache().createCacheFile(this):null;
+        this.cacheFile = enableDiskCache?createCacheFile():null;
+
+        // 小图片可能已经移到打包磁盘缓存器中了，下载请求需要的是文件，所以要还原回去
+        if(cacheFile != null && !cacheFile.exists()){
+            restoreFromPackedDiskCache();
+        }
+
+        // 离线状态下只能使用缓存文件，没有缓存文件就直接失败
+        if(spear.isOffline()){
+            if(cacheFile != null && cacheFile.exists()){
+                handleDownloadCompleted(ImageDownloader.DownloadResult.createByFile(cacheFile, false));
+            }else{
+                if(Spear.isDebugMode()){
+                    Log.w(Spear.TAG, NAME + "：" + "离线状态，不再访问网络" + "；" + name);
+                }
+                failureCause = FailureCause.OFFLINE;
+                toFailedStatus();
+            }
+            return;
+        }
+
+        // 最近下载失败过的URI不再访问网络
+        if((cacheFile == null || !cacheFile.exists()) && failIfFailedRecently()){
+            return;
+        }
 
         // 从网络下载
         runDownload();
@@ -178,6 +327,72 @@ public class DownloadRequest implements Request{
         }
     }
 
+    /**
+     * 创建缓存文件，开启了去重的话优先使用内容相同的共享缓存文件
+     */
+    protected File createCacheFile(){
+        File cacheFile = spear.getConfiguration().getDiskCache().createCacheFile(this);
+        DiskCacheDeduplicator diskCacheDeduplicator = spear.getConfiguration().getDiskCacheDeduplicator();
+        if(cacheFile != null && diskCacheDeduplicator != null && !cacheFile.exists()){
+            File sharedCacheFile = diskCacheDeduplicator.getCacheFile(this);
+            if(sharedCacheFile != null){
+                return sharedCacheFile;
+            }
+        }
+        return cacheFile;
+    }
+
+    /**
+     * 重新查找缓存文件，等待下载锁的时候别的请求可能已经下载好并去重换成了共享文件，下载器拿到锁之后调用
+     * @return 缓存文件
+     */
+    public File refreshCacheFile(){
+        if(cacheFile != null && !cacheFile.exists() && spear.getConfiguration().getDiskCacheDeduplicator() != null){
+            cacheFile = createCacheFile();
+        }
+        return cacheFile;
+    }
+
+    /**
+     * 对刚下载的缓存文件去重，下载器要在释放下载锁之前调用，这样等锁的请求拿到锁之后就能找到共享文件
+     * @param file 刚下载的缓存文件
+     * @return 去重后的缓存文件
+     */
+    public File deduplicateCacheFile(File file){
+        DiskCacheDeduplicator diskCacheDeduplicator = spear.getConfiguration().getDiskCacheDeduplicator();
+        return diskCacheDeduplicator != null ? diskCacheDeduplicator.deduplicate(this, file) : file;
+    }
+
+    /**
+     * 把打包磁盘缓存器中的数据还原成缓存文件，先写临时文件再重命名
+     */
+    private void restoreFromPackedDiskCache(){
+        PackedDiskCache packedDiskCache = spear.getConfiguration().getPackedDiskCache();
+        byte[] data = packedDiskCache != null ? packedDiskCache.get(getCacheKey()) : null;
+        if(data == null || !spear.getConfiguration().getDiskCache().applyForSpace(data.length)){
+            return;
+        }
+
+        File tempFile = new File(cacheFile.getPath() + ".temp");
+        FileOutputStream outputStream = null;
+        boolean success = false;
+        try {
+            outputStream = new FileOutputStream(tempFile, false);
+            outputStream.write(data);
+            success = true;
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "从打包磁盘缓存器还原缓存文件失败：" + e.getMessage() + "；" + name);
+        } finally {
+            DownloadUtils.close(outputStream);
+        }
+
+        if(success && tempFile.renameTo(cacheFile)){
+            packedDiskCache.remove(getCacheKey());
+        }else if(tempFile.exists() && !tempFile.delete()){
+            Log.w(Spear.TAG, NAME + "：" + "删除临时缓存文件失败：" + tempFile.getPath() + "；" + name);
+        }
+    }
+
     /**
      * 执行下载
      */
@@ -191,17 +406,51 @@ public class DownloadRequest implements Request{
 
         ImageDownloader.DownloadResult downloadResult = spear.getConfiguration().getImageDownloader().download(this);
 
+        boolean success = downloadResult != null && (downloadResult.getResult() != null || downloadResult.isStream());
+        if(success && downloadResult.isFromNetwork()){
+            // 网络策略只关心传输速度，不算建立连接和等待首字节的时间
+            spear.getConfiguration().getNetworkPolicy().onDownloadCompleted(downloadResult.getLength(), downloadResult.getDownloadTime() - downloadResult.getFirstByteTime());
+            spear.getConfiguration().getConcurrencyController().onDownloadCompleted(downloadResult.getLength(), downloadResult.getFirstByteTime(), downloadResult.getDownloadTime());
+            if(downloadResult.getResult() instanceof File){
+                // 新下载的是原图，之前的转码记录已经不对了
+                DiskCacheTranscoder diskCacheTranscoder = spear.getConfiguration().getDiskCacheTranscoder();
+                if(diskCacheTranscoder != null){
+                    diskCacheTranscoder.remove(getCacheKey());
+                }
+                spear.getConfiguration().getDiskCacheJanitor().requestTrim();
+            }
+        }
+
         if(isCanceled()){
+            if(finishInBackground && Spear.isDebugMode()){
+                Log.d(Spear.TAG, NAME + "：" + "后台下载" + (downloadResult != null ? "完成" : "失败") + "；" + name);
+            }
             return;
         }
 
-        if(downloadResult != null  && downloadResult.getResult() != null){
+        if(success){
             handleDownloadCompleted(downloadResult);
         }else{
             toFailedStatus();
         }
     }
 
+    /**
+     * 最近下载失败过的URI直接失败，不再访问网络，磁盘缓存中没有的时候才调用
+     * @return true：已经失败了
+     */
+    protected boolean failIfFailedRecently(){
+        if(!spear.getConfiguration().getFailedUriCache().isFailed(uri)){
+            return false;
+        }
+        if(Spear.isDebugMode()){
+            Log.w(Spear.TAG, NAME + "：" + "最近下载失败过，不再访问网络" + "；" + name);
+        }
+        failureCause = FailureCause.DOWNLOAD_FAILED_RECENTLY;
+        toFailedStatus();
+        return true;
+    }
+
     public void handleUpdateProgress(int totalLength, int completedLength) {
         if(progressListener != null){
             progressListener.onUpdateProgress(totalLength, completedLength);
@@ -210,7 +459,10 @@ public class DownloadRequest implements Request{
 
     public void handleDownloadCompleted(ImageDownloader.DownloadResult downloadResult){
         toCompletedStatus();
-        if(downloadListener != null){
+        if(streamListener != null){
+            // 流式下载的数据已经在onStream()中交给调用者了
+            streamListener.onCompleted();
+        }else if(downloadListener != null){
             if(downloadResult.getResult().getClass().isAssignableFrom(File.class)){
                 downloadListener.onCompleted((File) downloadResult.getResult(), downloadResult.isFromNetwork());
             }else{
@@ -277,13 +529,47 @@ public class DownloadRequest implements Request{
 
     @Override
     public void toCanceledStatus() {
+        boolean downloading = this.status == Status.DOWNLOADING;
         this.status = Status.CANCELED;
+        if(downloading && !finishInBackground && isNearlyDownloaded()){
+            // 继续下载到磁盘缓存，但降为后台流量，下载完成后也不会解码
+            finishInBackground = true;
+            trafficClass = TrafficClass.BACKGROUND;
+            if(Spear.isDebugMode()){
+                Log.d(Spear.TAG, NAME + "：" + "已取消，但已经快下载完了，继续在后台下载" + "；" + downloadedLength + "/" + contentLength + "；" + name);
+            }
+        }else{
+            final ImageDownloader.Aborter aborter = this.aborter;
+            if(aborter != null){
+                // 断开连接可能会阻塞，取消通常发生在主线程，所以放到分发线程中去做；下载线程读到取消标记后也会自己退出
+                spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        aborter.abort();
+                    }
+                });
+            }
+        }
         handleCancel();
     }
 
+    /**
+     * 是否已经快下载完了，只有写入磁盘缓存的下载才有意义
+     */
+    private boolean isNearlyDownloaded(){
+        int contentLength = this.contentLength;
+        int downloadedLength = this.downloadedLength;
+        if(cacheFile == null || contentLength <= 0){
+            return false;
+        }
+        Configuration configuration = spear.getConfiguration();
+        return downloadedLength >= contentLength * configuration.getFinishInBackgroundProgress()
+                || contentLength - downloadedLength <= configuration.getFinishInBackgroundRemainingLength();
+    }
+
     public void handleFail(){
         if(downloadListener != null){
-            downloadListener.onFailed(null);
+            downloadListener.onFailed(failureCause);
         }
     }
 
@@ -296,13 +582,27 @@ public class DownloadRequest implements Request{
     @Override
     public void runDispatch() {
         this.runStatus = RunStatus.DISPATCH;
-        spear.getConfiguration().getRequestExecutor().getRequestDispatchExecutor().execute(this);
+        // 预热完成之前由Spear暂存，预热完成后再交给分发线程
+        spear.dispatch(this);
     }
 
     @Override
     public void runDownload() {
         this.runStatus = RunStatus.DOWNLOAD;
-        spear.getConfiguration().getRequestExecutor().getNetRequestExecutor().execute(this);
+        Executor netRequestExecutor = spear.getConfiguration().getRequestExecutor().getNetRequestExecutor();
+        // 并发数由控制器根据实测数据调整，网络策略根据网络类型给出上限
+        int concurrency = Math.min(spear.getConfiguration().getConcurrencyController().getConcurrency(), spear.getConfiguration().getNetworkPolicy().getNetConcurrency());
+        if(netRequestExecutor != resizedExecutor || concurrency != resizedPoolSize){
+            DefaultRequestExecutor.setPoolSize(netRequestExecutor, concurrency);
+            resizedExecutor = netRequestExecutor;
+            resizedPoolSize = concurrency;
+        }
+        if(trafficClass == TrafficClass.FOREGROUND){
+            netRequestExecutor.execute(this);
+        }else{
+            // 后台和预取下载限制占用的线程数，不能把前台请求堵在队列里
+            spear.getConfiguration().getBackgroundDownloadLimiter().execute(netRequestExecutor, this);
+        }
     }
 
     @Override
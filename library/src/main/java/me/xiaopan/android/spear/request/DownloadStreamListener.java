@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.request;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.android.spear.util.FailureCause;
+
+/**
+ * 流式下载监听器，数据到达时直接交给调用者，不会在内存中缓存整个文件，也不会写入磁盘缓存，适合分享、导出大图等场景
+ */
+public interface DownloadStreamListener {
+    /**
+     * 已开始
+     */
+    public void onStarted();
+
+    /**
+     * 收到数据流，在下载线程中执行。下载的速度取决于读取的速度，读取得慢下载就会暂停等待（背压）
+     * <br>方法返回后输入流会被关闭，请求取消后读取会抛出InterruptedIOException
+     * @param inputStream 输入流
+     * @param contentLength 内容长度
+     * @throws IOException 抛出异常会被当作下载失败
+     */
+    public void onStream(InputStream inputStream, int contentLength) throws IOException;
+
+    /**
+     * 已完成
+     */
+    public void onCompleted();
+
+    /**
+     * 已失败
+     * @param failureCause 失败原因
+     */
+    public void onFailed(FailureCause failureCause);
+
+    /**
+     * 已取消
+     */
+    public void onCanceled();
+}
@@ -23,8 +23,13 @@ import android.widget.ImageView;
 import java.io.File;
 
 import me.xiaopan.android.spear.Spear;
+import me.xiaopan.android.spear.cache.DiskCacheTranscoder;
+import me.xiaopan.android.spear.cache.PackedDiskCache;
 import me.xiaopan.android.spear.download.ImageDownloader;
+import me.xiaopan.android.spear.download.NetworkPolicy;
 import me.xiaopan.android.spear.process.ImageProcessor;
+import me.xiaopan.android.spear.util.FailureCause;
+import me.xiaopan.android.spear.util.ImageFormat;
 import me.xiaopan.android.spear.util.ImageScheme;
 import me.xiaopan.android.spear.util.ImageSize;
 
@@ -44,6 +49,9 @@ public class LoadRequest extends DownloadRequest{
     /* 辅助加载的属性 */
     private ImageFrom imageFrom;
     private byte[] imageData;
+    private boolean fromPackedDiskCache;    // 图片数据是否来自打包磁盘缓存器
+    private ImageFormat imageFormat;
+    private boolean degraded;   // 是否因为网络状况缩小了maxsize或者换了URI
 
     /**
      * 获取裁剪尺寸，ImageProcessor会根据此尺寸和scaleType来创建新的图片
@@ -134,6 +142,30 @@ public class LoadRequest extends DownloadRequest{
         this.imageData = imageData;
     }
 
+    /**
+     * 是否因为网络状况缩小了maxsize或者换了URI，这样的结果不应该当作正常结果缓存在内存中
+     * @return 是否降低了图片质量
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * 获取图片格式
+     * @return 图片格式，null：还不知道
+     */
+    public ImageFormat getImageFormat() {
+        return imageFormat;
+    }
+
+    /**
+     * 设置图片格式
+     * @param imageFormat 图片格式
+     */
+    public void setImageFormat(ImageFormat imageFormat) {
+        this.imageFormat = imageFormat;
+    }
+
     @Override
     public void run() {
         if(runStatus == RunStatus.LOAD){
@@ -146,15 +178,60 @@ public class LoadRequest extends DownloadRequest{
     @Override
     public void dispatch() {
         if(imageScheme == ImageScheme.HTTP || imageScheme == ImageScheme.HTTPS){
-            this.cacheFile = enableDiskCache?spear.getConfiguration().getDiskCache().createCacheFile(this):null;
+            this.cacheFile = enableDiskCache?createCacheFile():null;
+
+            // 缓存的是转码后的小图，不够这次用的，删掉重新下载原图
+            PackedDiskCache packedDiskCache = spear.getConfiguration().getPackedDiskCache();
+            DiskCacheTranscoder diskCacheTranscoder = spear.getConfiguration().getDiskCacheTranscoder();
+            if(cacheFile != null && diskCacheTranscoder != null && diskCacheTranscoder.isTooSmall(this)){
+                if(cacheFile.exists() && !cacheFile.delete()){
+                    Log.w(Spear.TAG, NAME + "：" + "删除转码后的缓存文件失败：" + cacheFile.getPath() + "；" + name);
+                }
+                if(packedDiskCache != null){
+                    packedDiskCache.remove(getCacheKey());
+                }
+            }
 
-            // 如果不需要缓存或缓存文件不存在就从网络下载
+            // 小图片可能已经移到打包磁盘缓存器中了
+            if(cacheFile != null && packedDiskCache != null && !cacheFile.exists()){
+                byte[] data = packedDiskCache.get(getCacheKey());
+                if(data != null){
+                    this.imageData = data;
+                    this.fromPackedDiskCache = true;
+                    setImageFrom(ImageFrom.DISK_CACHE);
+                    runLoad();
+                    if(Spear.isDebugMode()){
+                        Log.d(Spear.TAG, NAME + "：" + "LOAD - 打包磁盘缓存" + "；" + name);
+                    }
+                    return;
+                }
+            }
+
+            // 如果不需要缓存或缓存文件不存在就从网络下载，离线状态下就直接失败
             if(cacheFile == null || !cacheFile.exists()){
-                runDownload();
-                if(Spear.isDebugMode()){
-                    Log.d(Spear.TAG, NAME + "：" + "LOAD - 网络" + "；" + name);
+                if(spear.isOffline()){
+                    if(Spear.isDebugMode()){
+                        Log.w(Spear.TAG, NAME + "：" + "离线状态，不再访问网络" + "；" + name);
+                    }
+                    setFailureCause(FailureCause.OFFLINE);
+                    toFailedStatus();
+                    return;
+                }
+
+                // 最近下载失败过的URI不再访问网络
+                if(failIfFailedRecently()){
+                    return;
+                }
+
+                // 只有真的要访问网络了才根据网络状况调整maxsize和URI，已经缓存了的图片不受影响
+                applyNetworkPolicy();
+                if(cacheFile == null || !cacheFile.exists()){
+                    runDownload();
+                    if(Spear.isDebugMode()){
+                        Log.d(Spear.TAG, NAME + "：" + "LOAD - 网络" + "；" + name);
+                    }
+                    return;
                 }
-                return;
             }
         }
 
@@ -163,6 +240,27 @@ public class LoadRequest extends DownloadRequest{
         if(Spear.isDebugMode()) Log.d(Spear.TAG, NAME + "：" + "LOAD - 本地" + "；" + name);
     }
 
+    /**
+     * 根据网络状况调整maxsize和URI，换了URI的话缓存文件也要跟着换
+     */
+    private void applyNetworkPolicy(){
+        NetworkPolicy networkPolicy = spear.getConfiguration().getNetworkPolicy();
+        ImageSize newMaxsize = networkPolicy.adjustMaxsize(maxsize);
+        String newUri = networkPolicy.selectUri(uri, newMaxsize);
+        if(newMaxsize != maxsize){
+            maxsize = newMaxsize;
+            degraded = true;
+        }
+        if(newUri != null && !newUri.equals(uri)){
+            setUri(newUri);
+            this.cacheFile = enableDiskCache?createCacheFile():null;
+            degraded = true;
+        }
+        if(degraded && Spear.isDebugMode()){
+            Log.d(Spear.TAG, NAME + "：" + "根据网络状况调整" + "；" + "maxsize" + "=" + (maxsize != null ? maxsize.getWidth() + "x" + maxsize.getHeight() : null) + "；" + name);
+        }
+    }
+
     /**
      * 执行加载
      */
@@ -176,8 +274,14 @@ public class LoadRequest extends DownloadRequest{
 
         toLoadingStatus();
 
+        // 刚下载下来的图片先转码，内容相同的URI共享的缓存文件不转码，不然其它URI也会拿到转码后的图片，文件名也和内容对不上了
+        DiskCacheTranscoder diskCacheTranscoder = spear.getConfiguration().getDiskCacheTranscoder();
+        if(diskCacheTranscoder != null && imageFrom == ImageFrom.NETWORK && cacheFile != null && !isSharedCacheFile()){
+            diskCacheTranscoder.transcode(this);
+        }
+
         // 解码
-        Bitmap bitmap = spear.getConfiguration().getImageDecoder().decode(this);
+        Bitmap bitmap = decode();
 
         if(isCanceled()){
             if(bitmap != null && !bitmap.isRecycled()){
@@ -216,14 +320,57 @@ public class LoadRequest extends DownloadRequest{
 
         if(bitmap != null && !bitmap.isRecycled()){
             handleLoadCompleted(bitmap, imageFrom);
+            moveToPackedDiskCache();
         }else{
+            // 打包磁盘缓存器中的数据解码失败了说明已经损坏，删掉
+            if(fromPackedDiskCache){
+                spear.getConfiguration().getPackedDiskCache().remove(getCacheKey());
+            }
             toFailedStatus();
         }
     }
 
+    /**
+     * 解码
+     * @return null：解码失败
+     */
+    protected Bitmap decode(){
+        return spear.getConfiguration().getImageDecoder().decode(this);
+    }
+
+    /**
+     * 缓存文件是不是内容相同的URI共享的
+     */
+    private boolean isSharedCacheFile(){
+        return spear.getConfiguration().getDiskCacheDeduplicator() != null && !cacheFile.equals(spear.getConfiguration().getDiskCache().getCacheFileByUri(getCacheKey()));
+    }
+
+    /**
+     * 解码成功后把足够小的缓存文件移到打包磁盘缓存器中
+     */
+    private void moveToPackedDiskCache(){
+        PackedDiskCache packedDiskCache = spear.getConfiguration().getPackedDiskCache();
+        if(packedDiskCache == null || cacheFile == null || !cacheFile.exists() || (imageScheme != ImageScheme.HTTP && imageScheme != ImageScheme.HTTPS)){
+            return;
+        }
+        // 内容相同的URI共享的缓存文件不能移走
+        if(isSharedCacheFile()){
+            return;
+        }
+        long length = cacheFile.length();
+        if(length <= 0 || length > packedDiskCache.getMaxEntryLength() || spear.getConfiguration().getDiskCache().isPinned(getCacheKey()) || packedDiskCache.contains(getCacheKey())){
+            return;
+        }
+        // 同一个KEY的其它请求可能正在读这个文件，交给清洁工空闲时再删
+        if(packedDiskCache.put(getCacheKey(), cacheFile)){
+            spear.getConfiguration().getDiskCacheJanitor().requestDelete(getCacheKey(), cacheFile);
+        }
+    }
+
     @Override
     public void handleDownloadCompleted(ImageDownloader.DownloadResult downloadResult) {
         this.imageFrom = downloadResult.isFromNetwork()?ImageFrom.NETWORK:ImageFrom.DISK_CACHE;
+        this.imageFormat = downloadResult.getImageFormat();
 
         if(downloadResult.getResult().getClass().isAssignableFrom(File.class)){
             this.cacheFile = (File) downloadResult.getResult();
@@ -238,7 +385,7 @@ public class LoadRequest extends DownloadRequest{
     @Override
     public void handleFail() {
         if(loadListener != null){
-            loadListener.onFailed(null);
+            loadListener.onFailed(getFailureCause());
         }
     }
 
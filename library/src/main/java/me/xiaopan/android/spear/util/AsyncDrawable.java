@@ -28,16 +28,34 @@ import me.xiaopan.android.spear.request.DisplayRequest;
 
 public class AsyncDrawable extends BitmapDrawable {
     private WeakReference<DisplayRequest> displayRequestWeakReference;
+    private BitmapDrawable placeholderDrawable;   // 被当作占位图的内存缓存中的图片
 
     public AsyncDrawable(Resources res, Bitmap bitmap, DisplayRequest displayRequest) {
         super(res, bitmap);
         displayRequestWeakReference = new WeakReference<DisplayRequest>(displayRequest);
     }
 
+    /**
+     * 用内存缓存中的图片当占位图
+     * @param placeholderDrawable 内存缓存中的图片，比如同一张图片的其它尺寸
+     */
+    public AsyncDrawable(Resources res, BitmapDrawable placeholderDrawable, DisplayRequest displayRequest) {
+        this(res, placeholderDrawable.getBitmap(), displayRequest);
+        this.placeholderDrawable = placeholderDrawable;
+    }
+
     public DisplayRequest getDisplayRequest() {
         return displayRequestWeakReference.get();
     }
 
+    /**
+     * 获取被当作占位图的内存缓存中的图片，显示状态要同步给它，不然它可能在显示的时候被回收
+     * @return null：占位图不是来自内存缓存
+     */
+    public BitmapDrawable getPlaceholderDrawable() {
+        return placeholderDrawable;
+    }
+
     /**
      * 获取与给定ImageView所持有的DisplayRequst
      * @param imageView ImageView
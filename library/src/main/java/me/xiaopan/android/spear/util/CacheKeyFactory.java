@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.util;
+
+/**
+ * 缓存KEY工厂，磁盘缓存、内存缓存以及下载去重都用它根据URI生成的KEY，同一张图片的不同URI（例如带有轮换的签名参数或统计参数）应该生成相同的KEY
+ */
+public interface CacheKeyFactory {
+    /**
+     * 根据URI生成缓存KEY
+     * @param uri 图片URI
+     * @return 缓存KEY
+     */
+    public String createCacheKey(String uri);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 默认的缓存KEY工厂，去掉URI中的片段（#之后的部分），可以去掉指定的或所有的查询参数，还可以把剩下的查询参数排序
+ * <br>默认只去掉片段，其它的都不变；只处理http和https的URI，本地文件、content、asset等URI原样返回，它们的#和?可能是路径的一部分
+ */
+public class DefaultCacheKeyFactory implements CacheKeyFactory {
+    private Set<String> ignoredParameterNames;  // 要去掉的查询参数
+    private boolean ignoreAllParameters;    // 去掉所有的查询参数
+    private boolean sortParameters; // 把查询参数排序
+
+    public DefaultCacheKeyFactory() {
+        this.ignoredParameterNames = new HashSet<String>();
+    }
+
+    /**
+     * 去掉指定的查询参数，例如签名、过期时间、统计参数
+     * @param names 参数名称
+     * @return DefaultCacheKeyFactory
+     */
+    public synchronized DefaultCacheKeyFactory ignoreParameters(String... names) {
+        Collections.addAll(ignoredParameterNames, names);
+        return this;
+    }
+
+    /**
+     * 设置是否去掉所有的查询参数，适合查询参数跟图片内容无关的CDN
+     * @param ignoreAllParameters 是否去掉所有的查询参数
+     * @return DefaultCacheKeyFactory
+     */
+    public DefaultCacheKeyFactory setIgnoreAllParameters(boolean ignoreAllParameters) {
+        this.ignoreAllParameters = ignoreAllParameters;
+        return this;
+    }
+
+    /**
+     * 设置是否把查询参数排序，这样参数顺序不同的URI也会生成相同的KEY
+     * @param sortParameters 是否把查询参数排序
+     * @return DefaultCacheKeyFactory
+     */
+    public DefaultCacheKeyFactory setSortParameters(boolean sortParameters) {
+        this.sortParameters = sortParameters;
+        return this;
+    }
+
+    @Override
+    public String createCacheKey(String uri) {
+        ImageScheme imageScheme = ImageScheme.valueOfUri(uri);
+        if(imageScheme != ImageScheme.HTTP && imageScheme != ImageScheme.HTTPS){
+            return uri;
+        }
+
+        int fragmentIndex = uri.indexOf('#');
+        if(fragmentIndex != -1){
+            uri = uri.substring(0, fragmentIndex);
+        }
+
+        int queryIndex = uri.indexOf('?');
+        if(queryIndex == -1){
+            return uri;
+        }
+        String path = uri.substring(0, queryIndex);
+        if(ignoreAllParameters){
+            return path;
+        }
+
+        List<String> parameters = new ArrayList<String>();
+        synchronized (this){
+            for(String parameter : uri.substring(queryIndex + 1).split("&")){
+                if(parameter.length() == 0){
+                    continue;
+                }
+                int equalIndex = parameter.indexOf('=');
+                String name = equalIndex != -1 ? parameter.substring(0, equalIndex) : parameter;
+                if(!ignoredParameterNames.contains(name)){
+                    parameters.add(parameter);
+                }
+            }
+        }
+        if(parameters.isEmpty()){
+            return path;
+        }
+        if(sortParameters){
+            Collections.sort(parameters);
+        }
+
+        StringBuilder builder = new StringBuilder(path);
+        builder.append('?');
+        for(int i = 0; i < parameters.size(); i++){
+            if(i > 0){
+                builder.append('&');
+            }
+            builder.append(parameters.get(i));
+        }
+        return builder.toString();
+    }
+}
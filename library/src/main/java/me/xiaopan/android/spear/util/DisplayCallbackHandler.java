@@ -21,9 +21,13 @@ import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import me.xiaopan.android.spear.Spear;
 import me.xiaopan.android.spear.display.ImageDisplayer;
 import me.xiaopan.android.spear.request.DisplayListener;
@@ -39,10 +43,17 @@ public class DisplayCallbackHandler implements Handler.Callback{
     private static final int WHAT_CALLBACK_FAILED = 103;
     private static final int WHAT_CALLBACK_CANCELED = 104;
     private static final int WHAT_CALLBACK_PROGRESS = 105;
+    private static final int DEFAULT_PROGRESS_CALLBACK_INTERVAL = 16;   // 默认进度回调间隔，一帧
     private Handler handler;
+    private final Object progressLock = new Object();
+    private Map<DisplayRequest, int[]> pendingProgressMap;  // 等待回调的进度，每个请求只保留最新的进度
+    private boolean progressCallbackScheduled;
+    private long lastProgressCallbackTime;
+    private volatile int progressCallbackInterval = DEFAULT_PROGRESS_CALLBACK_INTERVAL;
 
     public DisplayCallbackHandler() {
         handler = new Handler(Looper.getMainLooper(), this);
+        pendingProgressMap = new LinkedHashMap<DisplayRequest, int[]>();
     }
 
     @Override
@@ -72,6 +83,10 @@ public class DisplayCallbackHandler implements Handler.Callback{
                 if(imageDisplayer == null){
                     imageDisplayer = displayRequest.getSpear().getConfiguration().getDefaultImageDisplayer();
                 }
+                // 先登记再显示，SpearImageView设置图片时才能计数
+                if(displayRequest.isEnableMemoryCache()){
+                    displayRequest.getSpear().getConfiguration().getMemoryCache().putActive(displayRequest.getId(), displayRequest.getResultBitmap());
+                }
                 imageDisplayer.display(imageView, displayRequest.getResultBitmap(), ImageDisplayer.BitmapType.SUCCESS, displayRequest);
                 displayRequest.toCompletedStatus();
 
@@ -80,11 +95,20 @@ public class DisplayCallbackHandler implements Handler.Callback{
                 }
                 return true;
             case WHAT_CALLBACK_PROGRESS :
-                DisplayRequest displayRequestOnProgress = (DisplayRequest) msg.obj;
-                if(displayRequestOnProgress.isFinished()){
-                    return true;
+                Map<DisplayRequest, int[]> progressMap;
+                synchronized (progressLock){
+                    progressMap = pendingProgressMap;
+                    pendingProgressMap = new LinkedHashMap<DisplayRequest, int[]>();
+                    progressCallbackScheduled = false;
+                    lastProgressCallbackTime = SystemClock.uptimeMillis();
+                }
+                for(Map.Entry<DisplayRequest, int[]> entry : progressMap.entrySet()){
+                    DisplayRequest displayRequestOnProgress = entry.getKey();
+                    if(displayRequestOnProgress.isFinished() || displayRequestOnProgress.getProgressListener() == null){
+                        continue;
+                    }
+                    displayRequestOnProgress.getProgressListener().onUpdateProgress(entry.getValue()[0], entry.getValue()[1]);
                 }
-                displayRequestOnProgress.getProgressListener().onUpdateProgress(msg.arg1, msg.arg2);
                 return true;
             case WHAT_CALLBACK_FAILED:
                 DisplayRequest displayRequestOnFail = (DisplayRequest) msg.obj;
@@ -172,7 +196,32 @@ public class DisplayCallbackHandler implements Handler.Callback{
         handler.obtainMessage(WHAT_CALLBACK_CANCELED, displayListener).sendToTarget();
     }
 
+    /**
+     * 更新进度，同一个请求在一个回调间隔内只保留最新的进度，所有请求的进度会在主线程中一次性回调
+     */
     public void updateProgressCallback(DisplayRequest request, int totalLength, int completedLength){
-        handler.obtainMessage(WHAT_CALLBACK_PROGRESS, totalLength, completedLength, request).sendToTarget();
+        synchronized (progressLock){
+            int[] progress = pendingProgressMap.get(request);
+            if(progress == null){
+                pendingProgressMap.put(request, new int[]{totalLength, completedLength});
+            }else{
+                progress[0] = totalLength;
+                progress[1] = completedLength;
+            }
+
+            if(!progressCallbackScheduled){
+                progressCallbackScheduled = true;
+                long delay = lastProgressCallbackTime + progressCallbackInterval - SystemClock.uptimeMillis();
+                handler.sendEmptyMessageDelayed(WHAT_CALLBACK_PROGRESS, delay > 0 ? delay : 0);
+            }
+        }
+    }
+
+    /**
+     * 设置进度回调间隔，在此间隔内的多次进度更新会被合并成一次回调
+     * @param progressCallbackInterval 进度回调间隔，单位毫秒，默认16毫秒（一帧）
+     */
+    public void setProgressCallbackInterval(int progressCallbackInterval) {
+        this.progressCallbackInterval = progressCallbackInterval;
     }
 }
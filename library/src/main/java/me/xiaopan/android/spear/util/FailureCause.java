@@ -39,4 +39,19 @@ public enum FailureCause {
      * 解码失败
      */
     DECODE_FAILED,
+
+    /**
+     * 最近下载失败过，在有效期内不再请求
+     */
+    DOWNLOAD_FAILED_RECENTLY,
+
+    /**
+     * 当前网络状况不允许预取
+     */
+    PREFETCH_NOT_ALLOWED,
+
+    /**
+     * 离线状态下没有缓存文件
+     */
+    OFFLINE,
 }
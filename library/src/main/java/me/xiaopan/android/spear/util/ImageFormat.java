@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.util;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.android.spear.Spear;
+
+/**
+ * 图片格式
+ */
+public enum ImageFormat {
+    JPEG("image/jpeg"),
+    PNG("image/png"),
+    GIF("image/gif"),
+    BMP("image/bmp"),
+    /**
+     * 有损WebP从4.0开始支持，但带透明度和无损的WebP到4.3才支持，所以这里统一从4.3开始算支持
+     */
+    WEBP("image/webp"){
+        @Override
+        public boolean isDecodeSupported() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        }
+    };
+
+    private static final String NAME = "ImageFormat";
+    private static final int HEADER_LENGTH = 12;
+    private String mimeType;
+
+    ImageFormat(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * 当前系统的BitmapFactory是否支持解码此格式
+     */
+    public boolean isDecodeSupported() {
+        return true;
+    }
+
+    /**
+     * 创建Accept请求头，只声明当前系统能够解码的格式，服务器可以据此返回更小的格式
+     * @return 例如image/webp,image/*;q=0.8
+     */
+    public static String createAcceptHeader(){
+        if(WEBP.isDecodeSupported()){
+            return WEBP.getMimeType() + ",image/*;q=0.8";
+        }else{
+            return "image/*";
+        }
+    }
+
+    /**
+     * 根据Content-Type获取图片格式
+     * @param contentType 例如image/jpeg
+     * @return null：未知格式
+     */
+    public static ImageFormat valueOfMimeType(String contentType){
+        if(contentType == null){
+            return null;
+        }
+        int index = contentType.indexOf(';');
+        String mimeType = (index != -1 ? contentType.substring(0, index) : contentType).trim();
+        if("image/jpg".equalsIgnoreCase(mimeType) || "image/pjpeg".equalsIgnoreCase(mimeType)){
+            return JPEG;
+        }
+        for(ImageFormat imageFormat : values()){
+            if(imageFormat.getMimeType().equalsIgnoreCase(mimeType)){
+                return imageFormat;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据文件头识别图片格式
+     * @param header 文件头，至少需要12个字节
+     * @param length 文件头的有效长度
+     * @return null：未知格式
+     */
+    public static ImageFormat valueOfHeader(byte[] header, int length){
+        if(header == null || length < 4){
+            return null;
+        }
+        if((header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8){
+            return JPEG;
+        }
+        if((header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G'){
+            return PNG;
+        }
+        if(header[0] == 'G' && header[1] == 'I' && header[2] == 'F'){
+            return GIF;
+        }
+        if(header[0] == 'B' && header[1] == 'M'){
+            return BMP;
+        }
+        if(length >= HEADER_LENGTH && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P'){
+            return WEBP;
+        }
+        return null;
+    }
+
+    /**
+     * 读取文件头识别图片格式
+     * @param file 图片文件
+     * @return null：未知格式或读取失败
+     */
+    public static ImageFormat valueOfFile(File file){
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            byte[] header = new byte[HEADER_LENGTH];
+            int length = 0;
+            int readNumber;
+            while(length < HEADER_LENGTH && (readNumber = inputStream.read(header, length, HEADER_LENGTH - length)) != -1){
+                length += readNumber;
+            }
+            return valueOfHeader(header, length);
+        } catch (IOException e) {
+            Log.w(Spear.TAG, NAME + "：" + "读取文件头失败：" + e.getMessage() + "；" + file.getPath());
+            return null;
+        } finally {
+            if(inputStream != null){
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // 只是读了文件头，关闭失败不影响结果
+                }
+            }
+        }
+    }
+
+    /**
+     * 识别图片数据的格式
+     * @param data 图片数据
+     * @return null：未知格式
+     */
+    public static ImageFormat valueOfData(byte[] data){
+        return data != null ? valueOfHeader(data, data.length) : null;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketRateLimiterTest {
+
+    @Test
+    public void testUnlimited() {
+        TokenBucketRateLimiter.Bucket bucket = new TokenBucketRateLimiter.Bucket();
+        assertEquals(0, bucket.take(1024 * 1024, 0));
+
+        bucket.setRate(0, 0);
+        assertEquals(0, bucket.take(1024 * 1024, 0));
+    }
+
+    @Test
+    public void testTakeWithinCapacity() {
+        TokenBucketRateLimiter.Bucket bucket = new TokenBucketRateLimiter.Bucket();
+        bucket.setRate(1000, 0);
+        assertEquals(0, bucket.take(400, 0));
+        assertEquals(0, bucket.take(600, 0));
+    }
+
+    @Test
+    public void testDebtIsPaidBySleeping() {
+        TokenBucketRateLimiter.Bucket bucket = new TokenBucketRateLimiter.Bucket();
+        bucket.setRate(1000, 0);
+        assertEquals(500, bucket.take(1500, 0));
+        // 欠账由后面的线程接着等
+        assertEquals(700, bucket.take(200, 0));
+        // 700毫秒后欠账刚好还清
+        assertEquals(100, bucket.take(100, 700));
+    }
+
+    @Test
+    public void testRefillIsCappedByRate() {
+        TokenBucketRateLimiter.Bucket bucket = new TokenBucketRateLimiter.Bucket();
+        bucket.setRate(1000, 0);
+        assertEquals(0, bucket.take(1000, 0));
+        // 空闲再久最多也只攒一秒的令牌
+        assertEquals(0, bucket.take(1000, 60 * 1000));
+        assertEquals(1, bucket.take(1, 60 * 1000));
+    }
+
+    @Test
+    public void testSetRateRefillsBucket() {
+        TokenBucketRateLimiter.Bucket bucket = new TokenBucketRateLimiter.Bucket();
+        bucket.setRate(1000, 0);
+        assertEquals(1000, bucket.take(2000, 0));
+        bucket.setRate(2000, 0);
+        assertEquals(0, bucket.take(2000, 0));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DefaultCacheKeyFactoryTest {
+
+    @Test
+    public void testDefaultOnlyRemovesFragment() {
+        DefaultCacheKeyFactory factory = new DefaultCacheKeyFactory();
+        assertEquals("http://site.com/image.png", factory.createCacheKey("http://site.com/image.png"));
+        assertEquals("http://site.com/image.png", factory.createCacheKey("http://site.com/image.png#top"));
+        assertEquals("https://site.com/image.png?b=2&a=1", factory.createCacheKey("https://site.com/image.png?b=2&a=1#top"));
+    }
+
+    @Test
+    public void testIgnoreParameters() {
+        DefaultCacheKeyFactory factory = new DefaultCacheKeyFactory().ignoreParameters("sign", "expires");
+        assertEquals("http://site.com/image.png?w=100", factory.createCacheKey("http://site.com/image.png?sign=abc&w=100&expires=123"));
+        assertEquals("http://site.com/image.png", factory.createCacheKey("http://site.com/image.png?sign=abc&expires=123"));
+        assertEquals("http://site.com/image.png?w=100&flag", factory.createCacheKey("http://site.com/image.png?w=100&&flag&sign"));
+        // 只比较完整的参数名称，前缀相同的其它参数不受影响
+        assertEquals("http://site.com/image.png?signature=abc", factory.createCacheKey("http://site.com/image.png?signature=abc"));
+    }
+
+    @Test
+    public void testIgnoreAllParameters() {
+        DefaultCacheKeyFactory factory = new DefaultCacheKeyFactory().setIgnoreAllParameters(true);
+        assertEquals("http://site.com/image.png", factory.createCacheKey("http://site.com/image.png?w=100&h=100#top"));
+    }
+
+    @Test
+    public void testSortParameters() {
+        DefaultCacheKeyFactory factory = new DefaultCacheKeyFactory().setSortParameters(true).ignoreParameters("t");
+        assertEquals("http://site.com/image.png?a=1&b=2&c=3", factory.createCacheKey("http://site.com/image.png?c=3&t=9&a=1&b=2"));
+        assertEquals(factory.createCacheKey("http://site.com/image.png?a=1&b=2"), factory.createCacheKey("http://site.com/image.png?b=2&a=1"));
+    }
+
+    @Test
+    public void testNonHttpUriUnchanged() {
+        DefaultCacheKeyFactory factory = new DefaultCacheKeyFactory().setIgnoreAllParameters(true).setSortParameters(true);
+        assertEquals("/mnt/sdcard/a#b?c.png", factory.createCacheKey("/mnt/sdcard/a#b?c.png"));
+        assertEquals("content://media/external/images/media/13?b=2&a=1", factory.createCacheKey("content://media/external/images/media/13?b=2&a=1"));
+        assertEquals("assets://image#1.png", factory.createCacheKey("assets://image#1.png"));
+    }
+}
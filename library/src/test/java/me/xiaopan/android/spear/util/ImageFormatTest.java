@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.android.spear.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ImageFormatTest {
+
+    @Test
+    public void testValueOfMimeType() {
+        assertEquals(ImageFormat.JPEG, ImageFormat.valueOfMimeType("image/jpeg"));
+        assertEquals(ImageFormat.JPEG, ImageFormat.valueOfMimeType("image/jpg"));
+        assertEquals(ImageFormat.JPEG, ImageFormat.valueOfMimeType("image/pjpeg"));
+        assertEquals(ImageFormat.PNG, ImageFormat.valueOfMimeType("IMAGE/PNG"));
+        assertEquals(ImageFormat.WEBP, ImageFormat.valueOfMimeType("image/webp; charset=binary"));
+        assertEquals(ImageFormat.GIF, ImageFormat.valueOfMimeType(" image/gif "));
+        assertNull(ImageFormat.valueOfMimeType("application/octet-stream"));
+        assertNull(ImageFormat.valueOfMimeType(null));
+    }
+
+    @Test
+    public void testValueOfHeader() {
+        assertEquals(ImageFormat.JPEG, valueOfHeader(0xFF, 0xD8, 0xFF, 0xE0));
+        assertEquals(ImageFormat.PNG, valueOfHeader(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A));
+        assertEquals(ImageFormat.GIF, valueOfHeader('G', 'I', 'F', '8', '9', 'a'));
+        assertEquals(ImageFormat.BMP, valueOfHeader('B', 'M', 0, 0));
+        assertEquals(ImageFormat.WEBP, valueOfHeader('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'));
+        // RIFF但不是WEBP，例如WAV
+        assertNull(valueOfHeader('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'));
+        assertNull(valueOfHeader(0, 0, 0, 0));
+    }
+
+    @Test
+    public void testValueOfHeaderLength() {
+        // 有效长度不够的不识别
+        assertNull(ImageFormat.valueOfHeader(new byte[]{(byte) 0xFF, (byte) 0xD8, 0, 0}, 3));
+        assertNull(ImageFormat.valueOfHeader(toBytes('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'), 11));
+        assertNull(ImageFormat.valueOfHeader(null, 12));
+        assertNull(ImageFormat.valueOfData(null));
+        assertEquals(ImageFormat.PNG, ImageFormat.valueOfData(toBytes(0x89, 'P', 'N', 'G')));
+    }
+
+    private static ImageFormat valueOfHeader(int... header){
+        byte[] bytes = toBytes(header);
+        return ImageFormat.valueOfHeader(bytes, bytes.length);
+    }
+
+    private static byte[] toBytes(int... values){
+        byte[] bytes = new byte[values.length];
+        for(int i = 0; i < values.length; i++){
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}